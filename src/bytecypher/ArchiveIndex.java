@@ -0,0 +1,369 @@
+package bytecypher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Index of a .bc archive, stored uncompressed as its last entry. The archive comment
+// holds the index entry's offset, so a reader only has to look at the end of the file
+// and then seek straight to any entry's local header:
+//
+//   archive comment: "bytecypher-index=<offset of the index entry>"
+//   index entry:     int count, then per entry
+//                    UTF path, UTF method ("blocks", "ref" or "dir"), long original size,
+//                    long compressed size, long local header offset, int CRC-32 of the
+//                    stored body, byte hash length, SHA-256 of the original contents
+public class ArchiveIndex {
+
+    static final String ENTRY_NAME = ".bytecypher-index";
+    private static final String COMMENT_PREFIX = "bytecypher-index=";
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int END_RECORD_SIZE = 22;
+
+    public static class Entry {
+
+        public final String path;
+        public final String method;
+        public final long originalSize;
+        public final long compressedSize;
+        final long offset;
+        final int crc;
+        final byte[] sha256;
+
+        Entry(String path, String method, long originalSize, long compressedSize, long offset, int crc, byte[] sha256) {
+            this.path = path;
+            this.method = method;
+            this.originalSize = originalSize;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+            this.crc = crc;
+            this.sha256 = sha256;
+        }
+
+        public boolean isDirectory() {
+            return method.equals("dir");
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private ArchiveIndex(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public Entry find(String path) {
+        for (Entry entry : entries) {
+            if (entry.path.equals(path)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Reads the index of an archive, or returns null for archives written without one.
+    public static ArchiveIndex read(FileChannel channel) throws IOException {
+        long indexOffset = findIndexOffset(channel);
+        if (indexOffset < 0) {
+            return null;
+        }
+
+        ByteBuffer header = readLocalHeader(channel, indexOffset);
+        if (header.getShort(8) != ZipEntry.STORED) {
+            throw new IOException("Archive index is not stored uncompressed");
+        }
+        long dataStart = indexOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        long dataLength = header.getInt(18) & 0xFFFFFFFFL;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new ChannelRangeInputStream(channel, dataStart, dataLength)))) {
+            int count = dis.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String path = dis.readUTF();
+                String method = dis.readUTF();
+                long originalSize = dis.readLong();
+                long compressedSize = dis.readLong();
+                long offset = dis.readLong();
+                int crc = dis.readInt();
+                byte[] sha256 = new byte[dis.readUnsignedByte()];
+                dis.readFully(sha256);
+                entries.add(new Entry(path, method, originalSize, compressedSize, offset, crc, sha256));
+            }
+            return new ArchiveIndex(entries);
+        }
+    }
+
+    // Opens the stored body of one entry (the ByteCypher payload, before decoding)
+    // by seeking to its local header; nothing else in the archive is read. Reading the
+    // body to the end checks it against the CRC-32 in the index, so a seek into a
+    // damaged region fails instead of decoding garbage.
+    public static InputStream openEntry(FileChannel channel, Entry entry) throws IOException {
+        return new CrcCheckingInputStream(openBody(channel, entry), entry);
+    }
+
+    private static InputStream openBody(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = readLocalHeader(channel, entry.offset);
+        long dataStart = entry.offset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        InputStream raw = new ChannelRangeInputStream(channel, dataStart, entry.compressedSize);
+
+        switch (header.getShort(8)) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                return new InflaterInputStream(raw, new Inflater(true), 64 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new IOException("Unsupported zip method for " + entry.path);
+        }
+    }
+
+    // Compares the CRC-32 of everything read with the index once the end is reached
+    private static class CrcCheckingInputStream extends CheckedInputStream {
+
+        private final Entry entry;
+
+        CrcCheckingInputStream(InputStream in, Entry entry) {
+            super(in, new CRC32());
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                verify();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            int read = super.read(buffer, off, len);
+            if (read == -1) {
+                verify();
+            }
+            return read;
+        }
+
+        private void verify() throws IOException {
+            if ((int) getChecksum().getValue() != entry.crc) {
+                throw new IOException("CRC mismatch in " + entry.path + ": the archive is damaged");
+            }
+        }
+    }
+
+    private static ByteBuffer readLocalHeader(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, offset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("No zip entry at offset " + offset);
+        }
+        return header;
+    }
+
+    // The end record sits in the last 22 bytes plus at most 64 KB of comment.
+    private static long findIndexOffset(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, END_RECORD_SIZE + 0xFFFF);
+        ByteBuffer tail = ByteBuffer.allocate(tailLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, size - tailLength);
+
+        for (int i = tailLength - END_RECORD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                continue;
+            }
+            int commentLength = tail.getShort(i + 20) & 0xFFFF;
+            if (i + END_RECORD_SIZE + commentLength != tailLength) {
+                continue; // Signature bytes inside the comment or entry data
+            }
+
+            byte[] comment = new byte[commentLength];
+            tail.position(i + END_RECORD_SIZE);
+            tail.get(comment);
+            String text = new String(comment, "UTF-8");
+            if (!text.startsWith(COMMENT_PREFIX)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(text.substring(COMMENT_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+        }
+    }
+
+    // Positional reads of one byte range, so several entries can be read at once
+    // from the same channel.
+    private static class ChannelRangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelRangeInputStream(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int length = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, length), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    // Zip output that records where every entry starts and appends the index when the
+    // archive is finished. Entries are indexed from their comment (see EntryInfo),
+    // which is complete by the time the entry is closed.
+    static class IndexingZipOutputStream extends ZipOutputStream {
+
+        private final CountingOutputStream counter;
+        private final List<Entry> entries = new ArrayList<>();
+        private ZipEntry current;
+        private long currentOffset;
+        private boolean indexWritten;
+
+        IndexingZipOutputStream(OutputStream out) {
+            this(new CountingOutputStream(out));
+        }
+
+        private IndexingZipOutputStream(CountingOutputStream counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        @Override
+        public void putNextEntry(ZipEntry entry) throws IOException {
+            closeEntry();
+            currentOffset = counter.count; // Previous entry is fully written by now
+            super.putNextEntry(entry);
+            current = entry;
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            super.closeEntry();
+            if (current == null) {
+                return;
+            }
+
+            ZipEntry entry = current;
+            current = null;
+            if (indexWritten) {
+                return; // The index entry itself
+            }
+
+            EntryInfo info = EntryInfo.parse(entry.getComment());
+            String method = entry.isDirectory() ? "dir" : info != null && info.reference ? "ref" : "blocks";
+            entries.add(new Entry(entry.getName(), method, info != null ? info.size : entry.getSize(),
+                    entry.getCompressedSize(), currentOffset, (int) entry.getCrc(),
+                    info != null ? info.sha256 : new byte[0]));
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!indexWritten) {
+                closeEntry();
+                indexWritten = true;
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream(entries.size() * 96 + 4);
+                DataOutputStream dos = new DataOutputStream(body);
+                dos.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    dos.writeUTF(entry.path);
+                    dos.writeUTF(entry.method);
+                    dos.writeLong(entry.originalSize);
+                    dos.writeLong(entry.compressedSize);
+                    dos.writeLong(entry.offset);
+                    dos.writeInt(entry.crc);
+                    dos.writeByte(entry.sha256.length);
+                    dos.write(entry.sha256);
+                }
+                byte[] index = body.toByteArray();
+
+                // Stored, so readers need no inflater and the header carries the exact size
+                ZipEntry indexEntry = new ZipEntry(ENTRY_NAME);
+                CRC32 crc = new CRC32();
+                crc.update(index);
+                indexEntry.setMethod(ZipEntry.STORED);
+                indexEntry.setSize(index.length);
+                indexEntry.setCompressedSize(index.length);
+                indexEntry.setCrc(crc.getValue());
+
+                long indexOffset = counter.count;
+                super.putNextEntry(indexEntry);
+                write(index);
+                super.closeEntry();
+                setComment(COMMENT_PREFIX + indexOffset);
+            }
+            super.finish();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
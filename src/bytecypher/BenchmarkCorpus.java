@@ -0,0 +1,75 @@
+package bytecypher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Synthetic inputs shared by the benchmark programs. A fixed seed keeps
+// runs comparable with each other.
+class BenchmarkCorpus {
+
+    private static final String[] WORDS = {
+        "the", "file", "archive", "compress", "block", "error", "request", "user", "session", "cache",
+        "server", "client", "timeout", "value", "config", "thread", "worker", "queue", "started", "finished",
+        "INFO", "WARN", "DEBUG", "bytes", "window", "match", "offset", "length", "literal", "checksum"
+    };
+
+    static byte[] text(int size) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            int words = 5 + random.nextInt(12);
+            for (int i = 0; i < words; i++) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            sb.append('\n');
+        }
+        return truncate(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    static byte[] logs(int size) {
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder(size + 256);
+        long timestamp = 1_700_000_000_000L;
+        while (sb.length() < size) {
+            timestamp += random.nextInt(50);
+            sb.append(timestamp).append(' ')
+                    .append(WORDS[20 + random.nextInt(3)]).append(" [worker-").append(random.nextInt(16)).append("] ")
+                    .append(WORDS[random.nextInt(20)]).append(' ')
+                    .append(WORDS[random.nextInt(WORDS.length)]).append(" id=")
+                    .append(Integer.toHexString(random.nextInt(1 << 20))).append(" took ")
+                    .append(random.nextInt(1000)).append("ms\n");
+        }
+        return truncate(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    // Fixed-width records with small counters and repeated padding, roughly like a database page.
+    static byte[] binary(int size) {
+        Random random = new Random(1);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        int id = 0;
+        while (buffer.remaining() >= 32) {
+            buffer.putInt(id++);
+            buffer.putInt(random.nextInt(100));
+            buffer.putLong(1_700_000_000L + id * 60L);
+            buffer.putShort((short) random.nextInt(8));
+            buffer.put(new byte[14]);
+        }
+        return buffer.array();
+    }
+
+    static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] truncate(byte[] data, int size) {
+        if (data.length == size) {
+            return data;
+        }
+        byte[] result = new byte[size];
+        System.arraycopy(data, 0, result, 0, Math.min(size, data.length));
+        return result;
+    }
+}
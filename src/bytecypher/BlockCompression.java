@@ -0,0 +1,299 @@
+package bytecypher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Streams a file through the codecs in fixed-size blocks so memory use does not
+// depend on the file size. Each block carries its own method byte and lengths:
+//
+//   [method: 1 byte][original length: int][compressed length: int][compressed data]
+//
+// Blocks follow each other until the end of the entry.
+public class BlockCompression {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20; // 1 MB, see CompressionSettings
+
+    // Worst case for a block is RLE on data without runs, which doubles it
+    private static final int MAX_ENCODED_BLOCK_SIZE = CompressionSettings.MAX_BLOCK_SIZE * 2 + 1024;
+
+    static final int METHOD_STORE = 0;
+    static final int METHOD_RLE = 1;
+    static final int METHOD_LZ77 = 2;    // lz77v2 tokens
+    static final int METHOD_HUFFMAN = 3; // Canonical Huffman payload
+
+    // What is known about the content, used to pick a codec per block. UNKNOWN
+    // blocks are classified by ContentSniffer before encoding.
+    public enum ContentType {
+        TEXT, BINARY, RUNS, COMPRESSED, UNKNOWN
+    }
+
+    // One compressed block, ready to be written.
+    static class EncodedBlock {
+
+        final int method;
+        final int originalLength;
+        final byte[] data;
+
+        EncodedBlock(int method, int originalLength, byte[] data) {
+            this.method = method;
+            this.originalLength = originalLength;
+            this.data = data;
+        }
+    }
+
+    // Compresses everything from in to out with the configured block size and worker
+    // pool, and returns the number of bytes written.
+    public static long compress(InputStream in, OutputStream out, ContentType type) throws IOException {
+        return compress(in, out, type, CompressionSettings.getBlockSize(), CompressionSettings.getBlockPool());
+    }
+
+    // Blocks are independent, so they are encoded concurrently on the pool (or inline
+    // when pool is null) and written back in input order. At most twice the pool's
+    // parallelism of blocks is held in memory at once.
+    public static long compress(InputStream in, OutputStream out, ContentType type, int blockSize,
+            ForkJoinPool pool) throws IOException {
+        return compress(() -> {
+            byte[] block = readBlock(in, blockSize);
+            return block == null ? null : ByteBuffer.wrap(block);
+        }, out, type, pool);
+    }
+
+    // Same as above for a memory-mapped file: blocks are views into the mapping, so the
+    // file is never copied to the heap. The digest, if any, is fed every block in order.
+    public static long compress(MappedInput in, OutputStream out, ContentType type, int blockSize,
+            ForkJoinPool pool, MessageDigest digest) throws IOException {
+        return compress(() -> {
+            ByteBuffer block = in.next(blockSize);
+            if (block != null && digest != null) {
+                digest.update(block.duplicate());
+            }
+            return block;
+        }, out, type, pool);
+    }
+
+    // Supplies the blocks of one input in order, then null.
+    private interface BlockSource {
+
+        ByteBuffer next() throws IOException;
+    }
+
+    private static long compress(BlockSource source, OutputStream out, ContentType type, ForkJoinPool pool)
+            throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        Deque<Future<EncodedBlock>> pending = new ArrayDeque<>();
+        int maxPending = pool == null ? 0 : pool.getParallelism() * 2;
+        long written = 0;
+
+        try {
+            ByteBuffer block;
+            while ((block = source.next()) != null) {
+                if (pool == null) {
+                    written += writeBlock(dos, encodeBlock(block, type));
+                    continue;
+                }
+
+                ByteBuffer input = block;
+                pending.addLast(pool.submit(() -> encodeBlock(input, type)));
+                if (pending.size() > maxPending) {
+                    written += writeBlock(dos, await(pending.removeFirst()));
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                written += writeBlock(dos, await(pending.removeFirst()));
+            }
+        } finally {
+            for (Future<EncodedBlock> task : pending) {
+                task.cancel(true);
+            }
+        }
+
+        dos.flush();
+        return written;
+    }
+
+    // Reading stays sequential; decoding runs on the pool and output is written in order.
+    public static void decompress(InputStream in, OutputStream out, ForkJoinPool pool) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int maxPending = pool == null ? 0 : pool.getParallelism() * 2;
+
+        try {
+            int method;
+            while ((method = dis.read()) != -1) {
+                int originalLength = dis.readInt();
+                int dataLength = dis.readInt();
+                if (originalLength < 0 || originalLength > CompressionSettings.MAX_BLOCK_SIZE
+                        || dataLength < 0 || dataLength > MAX_ENCODED_BLOCK_SIZE) {
+                    throw new IOException("Corrupt block header");
+                }
+                byte[] data = new byte[dataLength];
+                dis.readFully(data);
+
+                if (pool == null) {
+                    out.write(decodeBlock(method, data, originalLength));
+                    continue;
+                }
+
+                int blockMethod = method;
+                pending.addLast(pool.submit(() -> decodeBlock(blockMethod, data, originalLength)));
+                if (pending.size() > maxPending) {
+                    out.write(await(pending.removeFirst()));
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+        } finally {
+            for (Future<byte[]> task : pending) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    // Reads the next block, or returns null at the end of the input. readNBytes grows
+    // its buffer with the data actually read, so a short input costs only its own size
+    // rather than a whole block.
+    private static byte[] readBlock(InputStream in, int blockSize) throws IOException {
+        byte[] block = in.readNBytes(blockSize);
+        return block.length == 0 ? null : block;
+    }
+
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Block processing interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    static long writeBlock(DataOutputStream dos, EncodedBlock block) throws IOException {
+        dos.writeByte(block.method);
+        dos.writeInt(block.originalLength);
+        dos.writeInt(block.data.length);
+        dos.write(block.data);
+        return 9L + block.data.length;
+    }
+
+    // Encodes the bytes between the block's position and limit. Codecs read the
+    // buffer in place, so a block of a mapped file is only copied if it is stored.
+    static EncodedBlock encodeBlock(ByteBuffer block, ContentType type) {
+        EncodedBlock encoded = chooseEncoding(block, type);
+        CompressionStats.recordBlock(encoded.method, encoded.originalLength, encoded.data.length);
+        return encoded;
+    }
+
+    // Picks the codec for one block from the content type, falling back to storing
+    // the block when compression does not pay off. Fallback codecs run as trials with
+    // an output budget, so a codec that cannot win is abandoned early instead of
+    // compressing the whole block first.
+    private static EncodedBlock chooseEncoding(ByteBuffer block, ContentType type) {
+        int length = block.remaining();
+        long worthwhile = (long) (length * 0.95); // Largest output worth keeping over the raw block
+        if (type == ContentType.UNKNOWN) {
+            type = ContentSniffer.sniff(block);
+        }
+
+        switch (type) {
+            case COMPRESSED:
+                // For already compressed files, just store as is
+                return new EncodedBlock(METHOD_STORE, length, toArray(block));
+
+            case TEXT: {
+                // Use Huffman for text. The model gives the exact Huffman size up front,
+                // so the bitstream is only encoded if Huffman is the codec that gets stored.
+                HuffmanCompression.Model model = HuffmanCompression.buildModel(block);
+                long huffmanSize = model.getEncodedSize();
+
+                if (huffmanSize <= length * 0.9) {
+                    return new EncodedBlock(METHOD_HUFFMAN, length, new HuffmanCompression().compress(block, model));
+                }
+
+                // If Huffman compression isn't effective, try LZ77, which has to beat both Huffman and the raw block
+                byte[] lz77Data = LZ77.compressV2(block, new TrialBudget(length, Math.min(huffmanSize, length - 1)));
+                if (lz77Data != null) {
+                    return new EncodedBlock(METHOD_LZ77, length, lz77Data);
+                } else if (huffmanSize < length) {
+                    return new EncodedBlock(METHOD_HUFFMAN, length, new HuffmanCompression().compress(block, model));
+                }
+                return new EncodedBlock(METHOD_STORE, length, toArray(block));
+            }
+
+            case BINARY: {
+                // Use LZ77 for binary data, and store it if compression isn't effective
+                byte[] lz77Data = LZ77.compressV2(block, new TrialBudget(length, worthwhile));
+                if (lz77Data == null) {
+                    return new EncodedBlock(METHOD_STORE, length, toArray(block));
+                }
+                return new EncodedBlock(METHOD_LZ77, length, lz77Data);
+            }
+
+            case RUNS:
+            default: {
+                // For data made of long runs, RLE is the cheapest codec
+                byte[] rleData = RLE.compress(block, new TrialBudget(length, worthwhile));
+                if (rleData != null) {
+                    return new EncodedBlock(METHOD_RLE, length, rleData);
+                }
+
+                // If not effective, try LZ77
+                byte[] lz77Data = LZ77.compressV2(block, new TrialBudget(length, worthwhile));
+                if (lz77Data != null) {
+                    return new EncodedBlock(METHOD_LZ77, length, lz77Data);
+                }
+
+                // If nothing works well, just store
+                return new EncodedBlock(METHOD_STORE, length, toArray(block));
+            }
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer block) {
+        if (block.hasArray() && block.arrayOffset() == 0 && block.position() == 0
+                && block.remaining() == block.array().length) {
+            return block.array(); // Already a whole array, as for blocks read from a stream
+        }
+        byte[] copy = new byte[block.remaining()];
+        block.duplicate().get(copy);
+        return copy;
+    }
+
+    static byte[] decodeBlock(int method, byte[] data, int originalLength) throws IOException {
+        byte[] decoded;
+        switch (method) {
+            case METHOD_STORE:
+                decoded = data;
+                break;
+            case METHOD_RLE:
+                decoded = RLE.decompress(data);
+                break;
+            case METHOD_LZ77:
+                decoded = LZ77.decompressV2(data, originalLength);
+                break;
+            case METHOD_HUFFMAN:
+                decoded = new HuffmanCompression().decompress(data, originalLength);
+                break;
+            default:
+                throw new IOException("Unknown block method " + method);
+        }
+
+        if (decoded.length != originalLength) {
+            throw new IOException("Block decoded to " + decoded.length + " bytes, expected " + originalLength);
+        }
+        return decoded;
+    }
+}
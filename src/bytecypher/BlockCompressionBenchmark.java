@@ -0,0 +1,63 @@
+package bytecypher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// Measures how block compression and decompression of a single large input scale
+// with the number of worker threads (1, 2, 4, ... up to the available processors).
+// Usage: java -Xmx2g bytecypher.BlockCompressionBenchmark [sizeInMB] [blockSizeInKB]
+//        (default 256 MB of logs in 1024 KB blocks)
+public class BlockCompressionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) * 1024 : BlockCompression.DEFAULT_BLOCK_SIZE;
+        byte[] logs = BenchmarkCorpus.logs(sizeMb * 1024 * 1024);
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("Input %d MB, block size %d KB, %d processors%n", sizeMb, blockSize / 1024, processors);
+
+        double baseline = 0;
+        for (int step = 1; ; step *= 2) {
+            int threads = Math.min(step, processors);
+            ForkJoinPool pool = threads == 1 ? null : new ForkJoinPool(threads);
+            try {
+                // Warm up so the first configuration is not measured against a cold JIT
+                run(logs, blockSize, pool);
+
+                long start = System.nanoTime();
+                byte[] compressed = run(logs, blockSize, pool);
+                double compressSeconds = (System.nanoTime() - start) / 1e9;
+
+                ByteArrayOutputStream restored = new ByteArrayOutputStream(logs.length);
+                start = System.nanoTime();
+                BlockCompression.decompress(new ByteArrayInputStream(compressed), restored, pool);
+                double decompressSeconds = (System.nanoTime() - start) / 1e9;
+
+                if (baseline == 0) {
+                    baseline = compressSeconds;
+                }
+                System.out.printf("%2d threads: compress %8.2f MB/s (x%.2f), decompress %8.2f MB/s, ratio %.1f%% (%s)%n",
+                        threads, sizeMb / compressSeconds, baseline / compressSeconds, sizeMb / decompressSeconds,
+                        compressed.length * 100.0 / logs.length,
+                        Arrays.equals(restored.toByteArray(), logs) ? "ok" : "MISMATCH");
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
+
+            if (threads == processors) {
+                break;
+            }
+        }
+    }
+
+    private static byte[] run(byte[] input, int blockSize, ForkJoinPool pool) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+        BlockCompression.compress(new ByteArrayInputStream(input), out, BlockCompression.ContentType.TEXT, blockSize, pool);
+        return out.toByteArray();
+    }
+}
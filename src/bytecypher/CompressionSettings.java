@@ -0,0 +1,56 @@
+package bytecypher;
+
+import java.util.concurrent.ForkJoinPool;
+
+// Tuning knobs for compression and extraction. Defaults can be overridden at launch:
+//
+//   java -Dbytecypher.blockSize=4194304 -Dbytecypher.threads=8 -jar ByteCypher.jar
+//
+// blockSize is the number of input bytes per block (64 KB to 64 MB) and threads the
+// number of workers used for files and for the blocks of a single large file.
+public class CompressionSettings {
+
+    public static final int MIN_BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    private static int blockSize = clampBlockSize(
+            Integer.getInteger("bytecypher.blockSize", BlockCompression.DEFAULT_BLOCK_SIZE));
+    private static int workerThreads = Math.max(1,
+            Integer.getInteger("bytecypher.threads", Runtime.getRuntime().availableProcessors()));
+    private static ForkJoinPool blockPool;
+
+    public static synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    public static synchronized void setBlockSize(int size) {
+        blockSize = clampBlockSize(size);
+    }
+
+    public static synchronized int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public static synchronized void setWorkerThreads(int threads) {
+        workerThreads = Math.max(1, threads);
+    }
+
+    // Shared pool for block-level work (compression blocks, encryption segments), or
+    // null when running single-threaded.
+    public static synchronized ForkJoinPool getBlockPool() {
+        if (workerThreads == 1) {
+            return null;
+        }
+        if (blockPool == null || blockPool.getParallelism() != workerThreads) {
+            if (blockPool != null) {
+                blockPool.shutdown(); // Lets blocks already submitted finish
+            }
+            blockPool = new ForkJoinPool(workerThreads);
+        }
+        return blockPool;
+    }
+
+    private static int clampBlockSize(int size) {
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+}
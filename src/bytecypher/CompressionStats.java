@@ -0,0 +1,83 @@
+package bytecypher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts which block method was chosen, how much trial compression was thrown away
+// and how many files were deduplicated or reused, so the codec selection can be
+// checked on real folders. Updated from the worker threads, read once at the end
+// of a run.
+public class CompressionStats {
+
+    private static final String[] METHOD_NAMES = { "store", "rle", "lz77", "huffman" };
+
+    private static final AtomicLongArray blocks = new AtomicLongArray(METHOD_NAMES.length);
+    private static final AtomicLongArray inputBytes = new AtomicLongArray(METHOD_NAMES.length);
+    private static final AtomicLongArray outputBytes = new AtomicLongArray(METHOD_NAMES.length);
+    private static final AtomicLongArray abortedTrials = new AtomicLongArray(METHOD_NAMES.length);
+    private static final AtomicLongArray abortedInputBytes = new AtomicLongArray(METHOD_NAMES.length);
+    private static final AtomicLong duplicateFiles = new AtomicLong();
+    private static final AtomicLong duplicateBytes = new AtomicLong();
+    private static final AtomicLong reusedFiles = new AtomicLong();
+    private static final AtomicLong reusedBytes = new AtomicLong();
+
+    public static void reset() {
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            blocks.set(i, 0);
+            inputBytes.set(i, 0);
+            outputBytes.set(i, 0);
+            abortedTrials.set(i, 0);
+            abortedInputBytes.set(i, 0);
+        }
+        duplicateFiles.set(0);
+        duplicateBytes.set(0);
+        reusedFiles.set(0);
+        reusedBytes.set(0);
+    }
+
+    static void recordBlock(int method, int originalLength, int encodedLength) {
+        blocks.incrementAndGet(method);
+        inputBytes.addAndGet(method, originalLength);
+        outputBytes.addAndGet(method, encodedLength);
+    }
+
+    // A trial with the given method was abandoned after reading consumed input bytes.
+    static void recordAbort(int method, int consumed) {
+        abortedTrials.incrementAndGet(method);
+        abortedInputBytes.addAndGet(method, consumed);
+    }
+
+    // A file was stored as a reference to an earlier entry with the same contents.
+    static void recordDuplicate(long size) {
+        duplicateFiles.incrementAndGet();
+        duplicateBytes.addAndGet(size);
+    }
+
+    // An unchanged file kept its entry from the previous archive of an incremental run.
+    static void recordReused(long size) {
+        reusedFiles.incrementAndGet();
+        reusedBytes.addAndGet(size);
+    }
+
+    public static String summary() {
+        StringBuilder summary = new StringBuilder("Block methods:");
+        for (int i = 0; i < METHOD_NAMES.length; i++) {
+            long in = inputBytes.get(i);
+            summary.append(String.format("%n  %-8s %6d blocks, %12d -> %12d bytes",
+                    METHOD_NAMES[i], blocks.get(i), in, outputBytes.get(i)));
+            if (abortedTrials.get(i) > 0) {
+                summary.append(String.format(", %d trials aborted after %d bytes",
+                        abortedTrials.get(i), abortedInputBytes.get(i)));
+            }
+        }
+        if (duplicateFiles.get() > 0) {
+            summary.append(String.format("%n  %d duplicate files (%d bytes) stored as references",
+                    duplicateFiles.get(), duplicateBytes.get()));
+        }
+        if (reusedFiles.get() > 0) {
+            summary.append(String.format("%n  %d unchanged files (%d bytes) reused from the previous archive",
+                    reusedFiles.get(), reusedBytes.get()));
+        }
+        return summary.toString();
+    }
+}
@@ -4,12 +4,25 @@ import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
 import javax.swing.JDialog;
 import javax.swing.SwingUtilities;
 import java.awt.BorderLayout;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class Compressor {
@@ -19,6 +32,7 @@ public class Compressor {
     private static AtomicInteger processedFiles = new AtomicInteger(0);
     private static int totalFiles = 0;
 
+
     public static void compress(boolean isFile) {
         String inputPath = isFile ? FileSelector.selectFile() : FileSelector.selectFolder();
         if (inputPath == null) {
@@ -39,6 +53,98 @@ public class Compressor {
             return;
         }
 
+        writeArchive(inputFile, savePath, isFile, null, null);
+    }
+
+    // Compresses a file or folder straight into an encrypted archive. The archive is
+    // sealed segment by segment as it is written, so no plain .bc ever reaches the
+    // disk. Decrypting the result with Secure Decryption gives back that .bc.
+    public static void compressEncrypted() {
+        String[] kinds = {"File", "Folder"};
+        int kind = JOptionPane.showOptionDialog(null, "What would you like to shrink and encrypt?",
+                "Shrink & Encrypt", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, kinds, kinds[1]);
+        if (kind == JOptionPane.CLOSED_OPTION) {
+            System.out.println("Operation cancelled.");
+            return;
+        }
+        boolean isFile = kind == 0;
+
+        String inputPath = isFile ? FileSelector.selectFile() : FileSelector.selectFolder();
+        if (inputPath == null) {
+            System.out.println("No file or folder selected. Operation cancelled.");
+            return;
+        }
+
+        File inputFile = new File(inputPath);
+        if (!inputFile.exists()) {
+            System.out.println("Selected file or folder does not exist. Check the path.");
+            return;
+        }
+
+        System.out.println("File/Folder selected: " + inputPath);
+        String savePath = FileSelector.selectSaveLocation("Encrypted Archive", ".secfile");
+        if (savePath == null) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
+
+        char[] password = Encryption.askPassword(true, "Compression");
+        if (password == null) {
+            return;
+        }
+
+        writeArchive(inputFile, savePath, isFile, null, password);
+
+        // Clear password from memory
+        Arrays.fill(password, '\0');
+    }
+
+    // Re-archives a folder against an earlier archive of it. Files whose size and
+    // modification time match their entry in the earlier archive, or whose contents
+    // hash the same, have their entry copied over without being read or encoded again;
+    // only new and changed files are compressed.
+    public static void compressIncremental() {
+        String inputPath = FileSelector.selectFolder();
+        if (inputPath == null) {
+            System.out.println("No folder selected. Operation cancelled.");
+            return;
+        }
+
+        File inputFile = new File(inputPath);
+        if (!inputFile.isDirectory()) {
+            System.out.println("Selected folder does not exist. Check the path.");
+            return;
+        }
+
+        System.out.println("Folder selected: " + inputPath);
+        String previousPath = FileSelector.selectFile();
+        if (previousPath == null) {
+            System.out.println("No previous archive selected. Operation cancelled.");
+            return;
+        }
+        if (!previousPath.endsWith(".bc")) {
+            System.out.println("Invalid file format! Please select the previous .bc archive.");
+            JOptionPane.showMessageDialog(null,
+                    "Invalid file format! Please select the previous .bc archive.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        String savePath = FileSelector.selectSaveLocation("Compressed", ".bc");
+        if (savePath == null) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
+
+        writeArchive(inputFile, savePath, false, previousPath, null);
+    }
+
+    // Writes the archive for a file or folder, reusing entries of the archive at
+    // previousPath when it is not null. An archive that replaces the previous one is
+    // written next to it and moved into place once the previous archive is closed.
+    // With a password, the archive is encrypted on its way to the file.
+    private static void writeArchive(File inputFile, String savePath, boolean isFile, String previousPath,
+            char[] password) {
         // Count files to compress for progress tracking
         totalFiles = 0;
         processedFiles.set(0);
@@ -67,36 +173,28 @@ public class Compressor {
         });
 
         System.out.println("Compressing...");
-        try (FileOutputStream fos = new FileOutputStream(savePath); ZipOutputStream zos = new ZipOutputStream(fos)) {
+        CompressionStats.reset();
+        Path target = Paths.get(savePath);
+        boolean replacesPrevious = previousPath != null && isSameFile(previousPath, savePath);
+        Path output = replacesPrevious ? target.resolveSibling(target.getFileName() + ".tmp") : target;
 
-            Path rootPath = inputFile.toPath();
-            String rootName = rootPath.getFileName().toString();
+        try {
+            try (ZipFile previous = previousPath == null ? null : new ZipFile(previousPath);
+                    OutputStream fos = openOutput(output, inputFile.getName() + ".bc", password);
+                    ZipOutputStream zos = new ArchiveIndex.IndexingZipOutputStream(
+                            new BufferedOutputStream(fos, 64 * 1024))) {
 
-            if (isFile) {
-                compressFile(inputFile, inputFile.getName(), zos);
-                updateProgress();
-            } else {
-                // Use Files.walkFileTree for proper directory traversal
-                Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        // Get the relative path from the root folder
-                        String relativePath = rootName + "/" + rootPath.relativize(file).toString();
-                        compressFile(file.toFile(), relativePath, zos);
-                        updateProgress();
-                        return FileVisitResult.CONTINUE;
-                    }
+                Path rootPath = inputFile.toPath();
+                String rootName = rootPath.getFileName().toString();
 
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        if (!dir.equals(rootPath)) {
-                            String relativePath = rootName + "/" + rootPath.relativize(dir).toString() + "/";
-                            zos.putNextEntry(new ZipEntry(relativePath));
-                            zos.closeEntry();
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
+                if (isFile) {
+                    writeEntry(EncodedEntry.deferred(inputFile.getName(), inputFile), zos);
+                } else {
+                    compressFolder(rootPath, rootName, zos, previous);
+                }
+            }
+            if (replacesPrevious) {
+                Files.move(output, target, StandardCopyOption.REPLACE_EXISTING);
             }
 
             // Close progress dialog
@@ -106,11 +204,16 @@ public class Compressor {
                 }
             });
 
+            System.out.println(CompressionStats.summary());
             System.out.println("Compression successful! Compressed file saved at: " + savePath);
             JOptionPane.showMessageDialog(null,
                     "Compression successful!\nCompressed file saved at: " + savePath,
                     "Compression Complete", JOptionPane.INFORMATION_MESSAGE);
         } catch (IOException e) {
+            if (replacesPrevious || password != null) {
+                // The previous archive stays as it was, and a cut-off encrypted archive is useless
+                output.toFile().delete();
+            }
             SwingUtilities.invokeLater(() -> {
                 if (progressDialog != null) {
                     progressDialog.dispose();
@@ -124,6 +227,27 @@ public class Compressor {
         }
     }
 
+    private static OutputStream openOutput(Path output, String archiveName, char[] password) throws IOException {
+        OutputStream fos = new FileOutputStream(output.toFile());
+        if (password == null) {
+            return fos;
+        }
+        try {
+            return Encryption.encryptingStream(fos, archiveName, password);
+        } catch (IOException | RuntimeException e) {
+            fos.close();
+            throw e;
+        }
+    }
+
+    private static boolean isSameFile(String first, String second) {
+        try {
+            return Files.exists(Paths.get(second)) && Files.isSameFile(Paths.get(first), Paths.get(second));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private static void updateProgress() {
         int current = processedFiles.incrementAndGet();
         SwingUtilities.invokeLater(() -> {
@@ -149,111 +273,251 @@ public class Compressor {
         return count;
     }
 
-    private static void compressFile(File file, String entryName, ZipOutputStream zos) throws IOException {
-        if (file.isDirectory()) {
-            return; // Skip directories as they are handled separately
-        }
-
-        byte[] fileBytes = Files.readAllBytes(file.toPath());
-
-        // Determine the best compression method based on file type
-        String fileExtension = getFileExtension(file.getName()).toLowerCase();
-        byte[] compressedData;
-        String compressionMethod;
-
-        if (isAlreadyCompressedFile(fileExtension)) {
-            // For already compressed files, just store as is
-            compressedData = fileBytes;
-            compressionMethod = "store";
-            // System.out.println("Storing already compressed file: " + file.getName());
-        } else if (isTextFile(fileExtension)) {
-            // Use Huffman for text files
-            HuffmanCompression huffman = new HuffmanCompression();
-            compressedData = huffman.compress(fileBytes);
-
-            // If Huffman compression isn't effective, try LZ77
-            if (compressedData.length > fileBytes.length * 0.9) {
-                compressedData = LZ77.compress(fileBytes);
-                compressionMethod = "lz77";
-                // System.out.println("Using LZ77 compression for: " + file.getName());
-            } else {
-                compressionMethod = "huffman";
-                // System.out.println("Using Huffman compression for: " + file.getName());
-            }
-        } else if (isBinaryFile(fileExtension)) {
-            // Use LZ77 for binary files
-            compressedData = LZ77.compress(fileBytes);
-
-            // If compression isn't effective, just store
-            if (compressedData.length > fileBytes.length * 0.95) {
-                compressedData = fileBytes;
-                compressionMethod = "store";
-                // System.out.println("Storing incompressible file: " + file.getName());
-            } else {
-                compressionMethod = "lz77";
-                // System.out.println("Using LZ77 compression for: " + file.getName());
-            }
-        } else {
-            // For unknown files, try RLE which is better for binary data with repetition
-            compressedData = RLE.compress(fileBytes);
-
-            // Check if RLE is effective
-            if (compressedData.length > fileBytes.length * 0.95) {
-                // If not effective, try LZ77
-                byte[] lz77Data = LZ77.compress(fileBytes);
-
-                if (lz77Data.length < compressedData.length && lz77Data.length < fileBytes.length * 0.95) {
-                    compressedData = lz77Data;
-                    compressionMethod = "lz77";
-                    // System.out.println("Using LZ77 compression for: " + file.getName());
-                } else {
-                    // If nothing works well, just store
-                    compressedData = fileBytes;
-                    compressionMethod = "store";
-                    // System.out.println("Storing incompressible file: " + file.getName());
+    // Walks the folder on the calling thread, which is also the only thread that writes
+    // to the archive. Files are encoded on a bounded worker pool; finished entries are
+    // written in the order the walk found them, so the archive layout does not depend on
+    // which worker finishes first. At most twice the worker count of encoded files are
+    // held in memory while waiting for their turn. A file with the same contents as an
+    // earlier one is written as a reference to that entry instead of being encoded again,
+    // and a file unchanged since the previous archive (if any) reuses its old entry.
+    private static void compressFolder(Path rootPath, String rootName, ZipOutputStream zos, ZipFile previous)
+            throws IOException {
+        int threads = CompressionSettings.getWorkerThreads();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<EncodedEntry>> pending = new ArrayDeque<>();
+        int maxPending = threads * 2;
+        DedupIndex dedup = new DedupIndex();
+
+        try {
+            Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // Get the relative path from the root folder
+                    String relativePath = rootName + "/" + rootPath.relativize(file).toString();
+                    long size = attrs.size();
+                    long modifiedTime = attrs.lastModifiedTime().toMillis();
+                    DedupIndex.FileRecord record = dedup.add(file, relativePath, size);
+
+                    ZipEntry previousEntry = previous == null ? null : previous.getEntry(relativePath);
+                    EntryInfo previousInfo = previousEntry == null ? null : EntryInfo.parse(previousEntry.getComment());
+                    if (previousInfo != null && previousInfo.matches(size, modifiedTime)) {
+                        // Unchanged since the previous archive, so its hash is known without reading it
+                        record.setHash(previousInfo.sha256);
+                        if (!previousInfo.reference) {
+                            enqueue(pending, maxPending, CompletableFuture.completedFuture(
+                                    EncodedEntry.reused(relativePath, previous, previousEntry, previousInfo)), zos);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    }
+
+                    enqueue(pending, maxPending, workers.submit(() -> {
+                        String original = record.findOriginal();
+                        if (original != null) {
+                            updateProgress();
+                            return EncodedEntry.reference(relativePath, original,
+                                    new EntryInfo(size, modifiedTime, record.hash(), true));
+                        }
+
+                        if (previousInfo != null && !previousInfo.reference && previousInfo.size == size
+                                && Arrays.equals(record.hash(), previousInfo.sha256)) {
+                            // Touched but not modified: same contents under a new modification time
+                            return EncodedEntry.reused(relativePath, previous, previousEntry,
+                                    new EntryInfo(size, modifiedTime, previousInfo.sha256, false));
+                        }
+
+                        EncodedEntry entry = encodeFile(file.toFile(), relativePath);
+                        if (entry.deferredSource == null) {
+                            record.setHash(entry.info.sha256); // Later files of this size need not read it again
+                            updateProgress();
+                        }
+                        return entry;
+                    }), zos);
+                    return FileVisitResult.CONTINUE;
                 }
-            } else {
-                compressionMethod = "rle";
-                // System.out.println("Using RLE compression for: " + file.getName());
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(rootPath)) {
+                        String relativePath = rootName + "/" + rootPath.relativize(dir).toString() + "/";
+                        enqueue(pending, maxPending, CompletableFuture.completedFuture(EncodedEntry.directory(relativePath)), zos);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            while (!pending.isEmpty()) {
+                writeEntry(awaitEntry(pending.removeFirst()), zos);
             }
+        } finally {
+            workers.shutdownNow();
         }
+    }
 
-        // Create zip entry for the compressed file
-        ZipEntry zipEntry = new ZipEntry(entryName);
-        zos.putNextEntry(zipEntry);
-
-        // Use a new DataOutputStream that doesn't close the underlying stream
-        DataOutputStream dos = new DataOutputStream(new NonClosingOutputStream(zos));
+    private static void enqueue(Deque<Future<EncodedEntry>> pending, int maxPending, Future<EncodedEntry> entry,
+            ZipOutputStream zos) throws IOException {
+        pending.addLast(entry);
+        while (pending.size() > maxPending) {
+            writeEntry(awaitEntry(pending.removeFirst()), zos);
+        }
+    }
 
+    private static EncodedEntry awaitEntry(Future<EncodedEntry> entry) throws IOException {
         try {
-            dos.writeUTF(compressionMethod);              // Write compression method used
-            dos.writeLong(fileBytes.length);              // Write original file size
-
-            if (compressionMethod.equals("huffman")) {
-                // For Huffman, we need to save the tree
-                HuffmanCompression huffman = new HuffmanCompression();
-                huffman.compress(fileBytes); // Recreate the tree
-
-                // Use ObjectOutputStream that doesn't close the underlying stream
-                ObjectOutputStream oos = new ObjectOutputStream(new NonClosingOutputStream(dos));
-                oos.writeObject(huffman.getTree());       // Save the Huffman tree
-                oos.flush();
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
 
-            dos.writeInt(compressedData.length);          // Write compressed data length
-            dos.write(compressedData);                    // Write compressed data
-            dos.flush();
-        } finally {
-            // Don't close dos here, just flush it
-            dos.flush();
+    // A file's compressed form, ready to be appended to the archive by the writer thread.
+    // Files too large to buffer are only referenced and get streamed when their turn comes,
+    // and unchanged files are copied from the previous archive at that point.
+    private static class EncodedEntry {
+
+        final String name;
+        final byte[] body;          // Encoded entry contents, or null
+        final File deferredSource;  // File to stream at write time, or null
+        final ZipFile reusedArchive; // Archive holding an up-to-date entry, or null
+        final ZipEntry reusedEntry;
+        final EntryInfo info;       // Source file details for the entry comment, or null
+
+        EncodedEntry(String name, byte[] body, File deferredSource, ZipFile reusedArchive, ZipEntry reusedEntry,
+                EntryInfo info) {
+            this.name = name;
+            this.body = body;
+            this.deferredSource = deferredSource;
+            this.reusedArchive = reusedArchive;
+            this.reusedEntry = reusedEntry;
+            this.info = info;
+        }
+
+        static EncodedEntry directory(String name) {
+            return new EncodedEntry(name, null, null, null, null, null);
+        }
+
+        static EncodedEntry deferred(String name, File source) {
+            return new EncodedEntry(name, null, source, null, null, null);
+        }
+
+        static EncodedEntry encoded(String name, byte[] body, EntryInfo info) {
+            return new EncodedEntry(name, body, null, null, null, info);
+        }
+
+        static EncodedEntry reused(String name, ZipFile archive, ZipEntry entry, EntryInfo info) {
+            CompressionStats.recordReused(info.size);
+            return new EncodedEntry(name, null, null, archive, entry, info);
+        }
+
+        // Body of a duplicate: method tag, original size, then the entry holding the data.
+        static EncodedEntry reference(String name, String original, EntryInfo info) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(body);
+            dos.writeUTF("ref");
+            dos.writeLong(info.size);
+            dos.writeUTF(original);
+
+            System.out.printf("Deduplicated %s - same contents as %s%n", name, original);
+            CompressionStats.recordDuplicate(info.size);
+            return encoded(name, body.toByteArray(), info);
+        }
+    }
+
+    private static void writeEntry(EncodedEntry entry, ZipOutputStream zos) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(entry.name);
+        if (entry.info != null) {
+            zipEntry.setTime(entry.info.modifiedTime);
+            zipEntry.setComment(entry.info.toComment());
+        } else if (entry.deferredSource != null) {
+            zipEntry.setTime(entry.deferredSource.lastModified());
+        }
+        zos.putNextEntry(zipEntry);
+
+        if (entry.body != null) {
+            zos.write(entry.body);
+        } else if (entry.deferredSource != null) {
+            EntryInfo info = writeFileBody(entry.deferredSource, zos, CompressionSettings.getBlockPool());
+            // Comments live in the central directory, which is only written when the
+            // archive is finished, so the hash can be filled in after the body
+            zipEntry.setComment(info.toComment());
+            updateProgress();
+        } else if (entry.reusedEntry != null) {
+            // The stored ByteCypher body is copied as is, without decoding any block
+            try (InputStream in = entry.reusedArchive.getInputStream(entry.reusedEntry)) {
+                in.transferTo(zos);
+            }
+            System.out.printf("Unchanged %s - reused from the previous archive%n", entry.name);
+            updateProgress();
         }
 
         zos.closeEntry();
+    }
+
+    // Encodes a file in memory. Runs on worker threads, so it must not touch the archive.
+    // Files larger than a few blocks are left to the writer, which streams them and
+    // spreads their blocks over the block pool.
+    private static EncodedEntry encodeFile(File file, String entryName) throws IOException {
+        if (isLargeFile(file.length())) {
+            return EncodedEntry.deferred(entryName, file); // Streamed by the writer instead
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) file.length() / 2 + 64);
+        EntryInfo info = writeFileBody(file, body, null);
+        return EncodedEntry.encoded(entryName, body.toByteArray(), info);
+    }
+
+    // Files over a few blocks are streamed by the writer and read through a memory map.
+    private static boolean isLargeFile(long size) {
+        return size > 4L * CompressionSettings.getBlockSize();
+    }
+
+    // Writes the entry body for a file: method tag, original size, then the file's blocks.
+    // Memory use is a few blocks regardless of the file size. Blocks are encoded on
+    // blockPool, or inline when it is null. The file is hashed in the same pass, for
+    // later incremental runs.
+    private static EntryInfo writeFileBody(File file, OutputStream out, ForkJoinPool blockPool) throws IOException {
+        long originalSize = file.length();
+        long modifiedTime = file.lastModified();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        // Use a new DataOutputStream that doesn't close the underlying stream
+        DataOutputStream dos = new DataOutputStream(new NonClosingOutputStream(out));
+        dos.writeUTF("blocks");                       // Write entry format
+        dos.writeLong(originalSize);                  // Write original file size
+
+        // The codec is picked per block from a sample of its contents, so misnamed
+        // or extensionless files get the same treatment as well-named ones
+        long compressedSize;
+        if (isLargeFile(originalSize)) {
+            // Encoded straight from the page cache, so large files add no heap copies
+            try (MappedInput in = new MappedInput(file.toPath())) {
+                compressedSize = BlockCompression.compress(in, dos, BlockCompression.ContentType.UNKNOWN,
+                        CompressionSettings.getBlockSize(), blockPool, digest);
+            }
+        } else {
+            try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+                compressedSize = BlockCompression.compress(in, dos, BlockCompression.ContentType.UNKNOWN,
+                        CompressionSettings.getBlockSize(), blockPool);
+            }
+        }
+        dos.flush();
 
         // Print compression ratio
-        double ratio = 100.0 - ((double) compressedData.length * 100.0 / fileBytes.length);
+        double ratio = 100.0 - ((double) compressedSize * 100.0 / originalSize);
         System.out.printf("Compressed %s - Original: %d bytes, Compressed: %d bytes (%.2f%% reduction)%n",
-                file.getName(), fileBytes.length, compressedData.length, ratio);
+                file.getName(), originalSize, compressedSize, ratio);
+        return new EntryInfo(originalSize, modifiedTime, digest.digest(), false);
     }
 
     // Add this helper class to prevent stream closing
@@ -269,21 +533,4 @@ public class Compressor {
             flush();
         }
     }
-
-    private static String getFileExtension(String fileName) {
-        int dotIndex = fileName.lastIndexOf('.');
-        return (dotIndex == -1) ? "" : fileName.substring(dotIndex + 1);
-    }
-
-    private static boolean isTextFile(String extension) {
-        return extension.matches("txt|html|css|js|java|py|c|cpp|h|xml|json|md|csv|log|ini|conf|properties|sql|sh|bat");
-    }
-
-    private static boolean isAlreadyCompressedFile(String extension) {
-        return extension.matches("jpg|jpeg|png|gif|mp3|mp4|avi|mov|mkv|flac|wav|ogg|webm|pdf|zip|rar|7z|gz|bz2|xz|tar|webp");
-    }
-
-    private static boolean isBinaryFile(String extension) {
-        return extension.matches("exe|dll|so|class|obj|bin|dat|db|sqlite|mdb|accdb|pdb|o");
-    }
 }
@@ -0,0 +1,132 @@
+package bytecypher;
+
+import java.nio.ByteBuffer;
+
+// Classifies data by looking at a sample of it instead of trusting the file name.
+// The sample is the start of the data plus evenly spaced windows across the rest,
+// at most 16 KB in total, so the cost does not depend on the size of the data.
+//
+// Decision order:
+//   1. A magic number of a compressed format at the start -> COMPRESSED (store)
+//   2. Byte entropy close to 8 bits -> COMPRESSED, no codec here can win
+//   3. Long runs of the same byte -> RUNS (RLE, much faster than LZ77 on such data)
+//   4. Printable or UTF-8 bytes without NULs -> TEXT (Huffman)
+//   5. Anything else -> BINARY (LZ77)
+public class ContentSniffer {
+
+    private static final int WINDOW_SIZE = 512;
+    private static final int MAX_WINDOWS = 32;
+
+    private static final double COMPRESSED_ENTROPY = 7.5; // Bits per byte
+    private static final double RUNS_RATIO = 0.25;        // Estimated RLE output/input, i.e. runs of 8+ bytes
+    private static final double TEXT_FRACTION = 0.95;
+
+    // Signatures of formats whose contents are already compressed
+    private static final byte[][] COMPRESSED_MAGIC = {
+            { 0x1F, (byte) 0x8B },                                   // gzip
+            { 'P', 'K', 0x03, 0x04 },                                // zip, jar, docx
+            { (byte) 0x89, 'P', 'N', 'G' },                          // png
+            { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },               // jpeg
+            { 'G', 'I', 'F', '8' },                                  // gif
+            { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C },      // 7z
+            { 'R', 'a', 'r', '!' },                                  // rar
+            { 'B', 'Z', 'h' },                                       // bzip2
+            { (byte) 0xFD, '7', 'z', 'X', 'Z', 0x00 },               // xz
+            { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD },                // zstd
+            { 'O', 'g', 'g', 'S' },                                  // ogg
+            { 'f', 'L', 'a', 'C' },                                  // flac
+            { 'I', 'D', '3' },                                       // mp3
+            { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 },                // mkv, webm
+    };
+
+    // Classifies the bytes between the buffer's position and limit.
+    public static BlockCompression.ContentType sniff(ByteBuffer data) {
+        int offset = data.position();
+        int length = data.remaining();
+        if (length == 0) {
+            return BlockCompression.ContentType.COMPRESSED; // Nothing to gain
+        }
+        if (hasCompressedMagic(data, offset, length)) {
+            return BlockCompression.ContentType.COMPRESSED;
+        }
+
+        int[] counts = new int[256];
+        int sampled = 0;
+        int runs = 0;
+        int textBytes = 0;
+        boolean hasNul = false;
+
+        // Whole data if it is small, otherwise MAX_WINDOWS windows spread evenly over it
+        int windows = Math.min(MAX_WINDOWS, (length + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        long stride = windows > 1 ? (long) (length - WINDOW_SIZE) / (windows - 1) : 0;
+
+        for (int w = 0; w < windows; w++) {
+            int start = offset + (int) (w * stride);
+            int end = Math.min(start + WINDOW_SIZE, offset + length);
+            int previous = -1;
+
+            for (int i = start; i < end; i++) {
+                int b = data.get(i) & 0xFF;
+                counts[b]++;
+                if (b != previous) {
+                    runs++; // RLE writes two bytes per run
+                }
+                if (b == 0) {
+                    hasNul = true;
+                } else if (b >= 0x20 || b == '\n' || b == '\r' || b == '\t' || b == '\f') {
+                    textBytes++; // Printable ASCII, and bytes >= 0x80 as part of UTF-8
+                }
+                previous = b;
+            }
+            sampled += end - start;
+        }
+
+        if (entropy(counts, sampled) > COMPRESSED_ENTROPY) {
+            return BlockCompression.ContentType.COMPRESSED;
+        }
+        if (2.0 * runs <= sampled * RUNS_RATIO) {
+            return BlockCompression.ContentType.RUNS;
+        }
+        if (!hasNul && textBytes >= sampled * TEXT_FRACTION) {
+            return BlockCompression.ContentType.TEXT;
+        }
+        return BlockCompression.ContentType.BINARY;
+    }
+
+    // Shannon entropy of the sampled bytes in bits per byte.
+    static double entropy(int[] counts, int total) {
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static boolean hasCompressedMagic(ByteBuffer data, int offset, int length) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(data, offset, length, magic, 0)) {
+                return true;
+            }
+        }
+
+        // mp4/mov keep "ftyp" at offset 4, webp is a RIFF container with a WEBP tag
+        return startsWith(data, offset, length, new byte[] { 'f', 't', 'y', 'p' }, 4)
+                || (startsWith(data, offset, length, new byte[] { 'R', 'I', 'F', 'F' }, 0)
+                        && startsWith(data, offset, length, new byte[] { 'W', 'E', 'B', 'P' }, 8));
+    }
+
+    private static boolean startsWith(ByteBuffer data, int offset, int length, byte[] magic, int at) {
+        if (length < at + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data.get(offset + at + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,19 +1,45 @@
 package bytecypher;
 
 import java.awt.BorderLayout;
+import java.awt.Dimension;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import javax.swing.JDialog;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 
 public class Decompressor {
 
     private static JProgressBar progressBar;
     private static JDialog progressDialog;
-    private static int processedFiles = 0;
+    private static AtomicInteger processedFiles = new AtomicInteger(0);
     private static int totalFiles = 0;
 
     public static void decompress() {
@@ -41,21 +67,247 @@ public class Decompressor {
         System.out.println("Decompressing...");
         File saveDirectory = new File(savePath);
 
-        // Count files to decompress for progress tracking
+        // The central directory lists every entry, so no extra pass over the archive is needed
+        try (ZipFile zipFile = new ZipFile(inputPath)) {
+            List<ZipEntry> fileEntries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            boolean isFolderZip = false;
+            boolean firstEntry = true;
+
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().equals(ArchiveIndex.ENTRY_NAME)) {
+                    continue; // Archive metadata, not a file
+                }
+
+                // Check if entries contain path separators (indicating a folder)
+                if (firstEntry) {
+                    isFolderZip = entry.getName().contains("/");
+                    firstEntry = false;
+                }
+
+                if (entry.isDirectory()) {
+                    // Create directory structure if needed
+                    File directory = new File(saveDirectory, entry.getName());
+                    if (!directory.exists()) {
+                        directory.mkdirs();
+                    }
+                } else {
+                    fileEntries.add(entry);
+                }
+            }
+
+            totalFiles = Math.max(1, fileEntries.size()); // At least 1 to avoid division by zero
+            processedFiles.set(0);
+            showProgressDialog();
+
+            extractEntries(zipFile, fileEntries, saveDirectory, isFolderZip);
+            reportResult(saveDirectory);
+
+        } catch (IOException e) {
+            reportFailure(e);
+        }
+    }
+
+    // Decrypts an archive written by Shrink & Encrypt and extracts it in the same pass.
+    // The decrypted archive is read once, front to back, as a zip stream; the plain .bc
+    // is never written to disk.
+    public static void decompressEncrypted() {
+        String inputPath = FileSelector.selectFile();
+        if (inputPath == null) {
+            System.out.println("No file selected. Operation cancelled.");
+            return;
+        }
+
+        if (!inputPath.endsWith(".secfile")) {
+            System.out.println("Invalid file format! Please select a valid .secfile file.");
+            JOptionPane.showMessageDialog(null,
+                    "Invalid file format! Please select a valid .secfile file.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        String savePath = FileSelector.selectDecompressionSaveLocation();
+        if (savePath == null) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
+
+        char[] password = Encryption.askPassword(false, "Decompression");
+        if (password == null) {
+            return;
+        }
+
+        System.out.println("Decrypting and decompressing...");
+        File saveDirectory = new File(savePath);
+        totalFiles = 0; // Not known until the end of the stream
+        processedFiles.set(0);
+
+        try (InputStream in = Encryption.decryptingStream(Paths.get(inputPath), password);
+                ZipInputStream zis = new ZipInputStream(new BufferedInputStream(in, 64 * 1024))) {
+            showProgressDialog();
+            extractStream(zis, saveDirectory);
+            reportResult(saveDirectory);
+        } catch (IOException e) {
+            reportFailure(e);
+        } finally {
+            // Clear password from memory
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    private static void reportResult(File saveDirectory) {
+        closeProgressDialog();
+
+        if (processedFiles.get() == 0) {
+            System.out.println("No files found in the archive.");
+            JOptionPane.showMessageDialog(null,
+                    "No files found in the archive.",
+                    "Decompression Result", JOptionPane.WARNING_MESSAGE);
+        } else {
+            System.out.println("Decompression successful! Files saved at: " + saveDirectory.getAbsolutePath());
+            JOptionPane.showMessageDialog(null,
+                    "Decompression successful!\nFiles saved at: " + saveDirectory.getAbsolutePath(),
+                    "Decompression Complete", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    private static void reportFailure(IOException e) {
+        closeProgressDialog();
+
+        System.out.println("Decompression failed: " + e.getMessage());
+        e.printStackTrace();
+        JOptionPane.showMessageDialog(null,
+                "Decompression failed: " + e.getMessage(),
+                "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private static void closeProgressDialog() {
+        SwingUtilities.invokeLater(() -> {
+            if (progressDialog != null) {
+                progressDialog.dispose();
+            }
+        });
+    }
+
+    // Lists the files of an archive from its index and extracts the one picked. Only
+    // the end of the archive, the index and that file's entry are read, however large
+    // the archive is.
+    public static void extractSingle() {
+        String inputPath = FileSelector.selectFile();
+        if (inputPath == null) {
+            System.out.println("No file selected. Operation cancelled.");
+            return;
+        }
+        if (!inputPath.endsWith(".bc")) {
+            System.out.println("Invalid file format! Please select a valid .bc file.");
+            JOptionPane.showMessageDialog(null,
+                    "Invalid file format! Please select a valid .bc file.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ)) {
+            ArchiveIndex index = ArchiveIndex.read(channel);
+            if (index == null) {
+                System.out.println("This archive has no index. Use 'Expand a File/Folder' to extract it.");
+                JOptionPane.showMessageDialog(null,
+                        "This archive was created without an index.\nUse 'Expand a File/Folder' to extract it.",
+                        "No Index", JOptionPane.WARNING_MESSAGE);
+                return;
+            }
+
+            List<ArchiveIndex.Entry> files = new ArrayList<>();
+            for (ArchiveIndex.Entry entry : index.getEntries()) {
+                if (!entry.isDirectory()) {
+                    files.add(entry);
+                    System.out.printf("%14d  %-6s  %s%n", entry.originalSize, entry.method, entry.path);
+                }
+            }
+            System.out.println(files.size() + " files in " + inputPath);
+
+            JList<String> list = new JList<>(files.stream().map(e -> e.path).toArray(String[]::new));
+            list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            JScrollPane scrollPane = new JScrollPane(list);
+            scrollPane.setPreferredSize(new Dimension(500, 300));
+            int option = JOptionPane.showConfirmDialog(null, scrollPane, "Select a File to Extract",
+                    JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+            if (option != JOptionPane.OK_OPTION || list.getSelectedIndex() < 0) {
+                System.out.println("No entry selected. Operation cancelled.");
+                return;
+            }
+            ArchiveIndex.Entry entry = files.get(list.getSelectedIndex());
+
+            String savePath = FileSelector.selectDecompressionSaveLocation();
+            if (savePath == null) {
+                System.out.println("No save location selected. Operation cancelled.");
+                return;
+            }
+
+            File outputFile = new File(savePath, new File(entry.path).getName());
+            long start = System.nanoTime();
+            extractIndexedEntry(channel, index, entry, outputFile);
+
+            System.out.printf("Extracted %s in %.1f ms%n", entry.path, (System.nanoTime() - start) / 1e6);
+            JOptionPane.showMessageDialog(null,
+                    "Extraction successful!\nFile saved at: " + outputFile.getAbsolutePath(),
+                    "Extraction Complete", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException e) {
+            System.out.println("Extraction failed: " + e.getMessage());
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null,
+                    "Extraction failed: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Decodes one indexed entry into outputFile and checks the result against the
+    // SHA-256 in the index. A deduplicated entry is resolved to the entry holding its data.
+    static void extractIndexedEntry(FileChannel channel, ArchiveIndex index, ArchiveIndex.Entry entry,
+            File outputFile) throws IOException {
+        MessageDigest digest;
         try {
-            totalFiles = countFilesInZip(inputPath);
-        } catch (Exception e) {
-            System.out.println("Error counting files in archive: " + e.getMessage());
-            totalFiles = 10; // Default value if counting fails
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+
+        String original;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(ArchiveIndex.openEntry(channel, entry)));
+                OutputStream out = new DigestOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(outputFile)), digest)) {
+            original = readEntry(dis, out, CompressionSettings.getBlockPool());
+            dis.transferTo(OutputStream.nullOutputStream()); // Reaches the end, which checks the CRC-32
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unsupported entry format in " + entry.path, e);
         }
-        processedFiles = 0;
 
-        // Initialize progress dialog
+        if (original != null) {
+            ArchiveIndex.Entry target = index.find(original);
+            if (target == null || target.method.equals("ref")) {
+                throw new IOException("Entry " + entry.path + " refers to missing entry " + original);
+            }
+            extractIndexedEntry(channel, index, target, outputFile);
+            return;
+        }
+
+        if (entry.sha256.length > 0 && !MessageDigest.isEqual(entry.sha256, digest.digest())) {
+            throw new IOException("Checksum mismatch for " + entry.path);
+        }
+    }
+
+    private static void showProgressDialog() {
         SwingUtilities.invokeLater(() -> {
             progressDialog = new JDialog((java.awt.Frame) null, "Decompressing Files", false);
             progressBar = new JProgressBar(0, totalFiles);
             progressBar.setStringPainted(true);
-            progressBar.setString("Extracting 0/" + totalFiles + " files...");
+            if (totalFiles == 0) {
+                // Streamed archives do not say how many files they hold up front
+                progressBar.setIndeterminate(true);
+                progressBar.setString("Extracting...");
+            } else {
+                progressBar.setString("Extracting 0/" + totalFiles + " files...");
+            }
 
             progressDialog.add(progressBar, BorderLayout.CENTER);
             progressDialog.pack();
@@ -63,185 +315,300 @@ public class Decompressor {
             progressDialog.setLocationRelativeTo(null);
             progressDialog.setVisible(true);
         });
+    }
 
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(inputPath))) {
-            ZipEntry entry;
-            boolean isFolderZip = false;
-            String folderName = null;
-
-            // First pass to determine if we have a folder structure or single file
-            try (ZipInputStream firstPassZis = new ZipInputStream(new FileInputStream(inputPath))) {
-                ZipEntry firstEntry = firstPassZis.getNextEntry();
-                if (firstEntry != null) {
-                    // Check if entries contain path separators (indicating a folder)
-                    if (firstEntry.getName().contains("/")) {
-                        isFolderZip = true;
-                        folderName = firstEntry.getName().split("/")[0];
-                    }
-                }
+    // Decodes entries on a worker pool. ZipFile reads each entry through its own
+    // stream, so workers never share a position in the archive, and every worker
+    // writes its own output file. With several entries the workers already keep every
+    // thread busy, so each decodes its entry's blocks inline and memory is bounded by
+    // one block per worker; a lone entry decodes its blocks on the block pool instead.
+    // Deduplicated entries only name the entry holding their data, so they are
+    // copied from its extracted file once all other entries are done.
+    private static void extractEntries(ZipFile zipFile, List<ZipEntry> fileEntries, File saveDirectory,
+            boolean isFolderZip) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(CompressionSettings.getWorkerThreads());
+        Queue<File[]> references = new ConcurrentLinkedQueue<>(); // {copy, original}
+        ForkJoinPool blockPool = fileEntries.size() > 1 ? null : CompressionSettings.getBlockPool();
+        try {
+            List<Future<?>> results = new ArrayList<>(fileEntries.size());
+            for (ZipEntry entry : fileEntries) {
+                results.add(workers.submit(() -> {
+                    extractEntry(zipFile, entry, saveDirectory, isFolderZip, blockPool, references);
+                    return null;
+                }));
+            }
+            awaitAll(results);
+
+            results.clear();
+            for (File[] reference : references) {
+                results.add(workers.submit(() -> {
+                    materializeReference(reference[0], reference[1]);
+                    return null;
+                }));
             }
+            awaitAll(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Decompression interrupted");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
 
-            // Second pass for actual decompression
-            while ((entry = zis.getNextEntry()) != null) {
-                if (entry.isDirectory()) {
-                    // Create directory structure if needed
-                    File directory = new File(saveDirectory, entry.getName());
-                    if (!directory.exists()) {
-                        directory.mkdirs();
-                    }
-                    continue;
-                }
+    private static void awaitAll(List<Future<?>> results) throws InterruptedException {
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                // Workers report their own failures; anything else is unexpected
+                System.out.println("Error decompressing entry: " + e.getCause().getMessage());
+            }
+        }
+    }
 
-                // Update progress
-                updateProgress();
+    private static File outputFileFor(String entryName, File saveDirectory, boolean isFolderZip) {
+        // Get entry name without the .bc extension if present
+        if (entryName.endsWith(".bc")) {
+            entryName = entryName.substring(0, entryName.length() - 3);
+        }
 
-                // Get entry name without the .bc extension if present
-                String entryName = entry.getName();
-                if (entryName.endsWith(".bc")) {
-                    entryName = entryName.substring(0, entryName.length() - 3);
-                }
+        // Determine where to save the file
+        if (isFolderZip) {
+            // Maintain folder structure
+            return new File(saveDirectory, entryName);
+        }
+        // If it's a single file, save directly in the selected folder
+        return new File(saveDirectory, new File(entryName).getName());
+    }
 
-                // Determine where to save the file
-                File outputFile;
-                if (isFolderZip) {
-                    // Maintain folder structure
-                    outputFile = new File(saveDirectory, entryName);
-                } else {
-                    // If it's a single file, save directly in the selected folder
-                    outputFile = new File(saveDirectory, new File(entryName).getName());
-                }
+    // File holding the data of a deduplicated entry. The name comes from the archive, so
+    // a target outside the extraction folder is refused instead of being copied in.
+    private static File referenceTargetFor(String original, File saveDirectory, boolean isFolderZip)
+            throws IOException {
+        File target = outputFileFor(original, saveDirectory, isFolderZip);
+        Path root = saveDirectory.toPath().toAbsolutePath().normalize();
+        if (!target.toPath().toAbsolutePath().normalize().startsWith(root)) {
+            throw new IOException("Reference to " + original + " points outside the extraction folder");
+        }
+        return target;
+    }
 
-                // Create parent directories if needed
-                if (outputFile.getParentFile() != null && !outputFile.getParentFile().exists()) {
-                    outputFile.getParentFile().mkdirs();
-                }
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File saveDirectory, boolean isFolderZip,
+            ForkJoinPool blockPool, Queue<File[]> references) {
+        // Update progress
+        updateProgress();
 
-                try {
-                    // Read compression method and other metadata
-                    DataInputStream dis = new DataInputStream(zis);
-
-                    // First try to read as a ByteCypher compressed file
-                    try {
-                        String compressionMethod = dis.readUTF();
-                        long originalSize = dis.readLong();
-
-                        byte[] decompressedData;
-
-                        if (compressionMethod.equals("huffman")) {
-                            // Handle Huffman decompression
-                            ObjectInputStream ois = new ObjectInputStream(dis);
-                            HuffmanCompression huffman = new HuffmanCompression();
-                            HuffmanCompression.Node tree = (HuffmanCompression.Node) ois.readObject();
-                            huffman.setTree(tree);
-
-                            int dataLength = dis.readInt();
-                            byte[] compressedData = new byte[dataLength];
-                            dis.readFully(compressedData);
-
-                            decompressedData = huffman.decompress(compressedData);
-                        } else if (compressionMethod.equals("lz77")) {
-                            // Handle LZ77 decompression
-                            int dataLength = dis.readInt();
-                            byte[] compressedData = new byte[dataLength];
-                            dis.readFully(compressedData);
-
-                            decompressedData = LZ77.decompress(compressedData);
-                        } else if (compressionMethod.equals("rle")) {
-                            // Handle RLE decompression
-                            int dataLength = dis.readInt();
-                            byte[] compressedData = new byte[dataLength];
-                            dis.readFully(compressedData);
-
-                            decompressedData = RLE.decompress(compressedData);
-                        } else {
-                            // Handle stored files (no compression)
-                            int dataLength = dis.readInt();
-                            decompressedData = new byte[dataLength];
-                            dis.readFully(decompressedData);
-                        }
-
-                        // Write the decompressed data to the output file
-                        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                            fos.write(decompressedData);
-                        }
-
-                    } catch (Exception e) {
-                        // If reading as ByteCypher format fails, try standard ZIP format
-                        // Read all bytes from the current entry
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[8192];
-                        int len;
-                        while ((len = zis.read(buffer)) > 0) {
-                            baos.write(buffer, 0, len);
-                        }
-
-                        // Write to output file
-                        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                            fos.write(baos.toByteArray());
-                        }
-                    }
-                } catch (Exception e) {
-                    System.out.println("Error decompressing entry " + entry.getName() + ": " + e.getMessage());
+        File outputFile = outputFileFor(entry.getName(), saveDirectory, isFolderZip);
+
+        // Create parent directories if needed
+        if (outputFile.getParentFile() != null && !outputFile.getParentFile().exists()) {
+            outputFile.getParentFile().mkdirs();
+        }
+
+        try {
+            // First try to read as a ByteCypher compressed file
+            String original;
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(entry)));
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                original = readEntry(dis, out, blockPool);
+            } catch (NotByteCypherEntryException e) {
+                // If the entry has no ByteCypher header, treat it as a plain ZIP entry
+                try (InputStream in = zipFile.getInputStream(entry); OutputStream out = new FileOutputStream(outputFile)) {
+                    in.transferTo(out);
                 }
+                original = null;
+            }
 
-                System.out.printf("Decompressed: %s%n", outputFile.getName());
+            if (original != null) {
+                references.add(new File[] { outputFile, referenceTargetFor(original, saveDirectory, isFolderZip) });
+                return;
             }
+        } catch (Exception e) {
+            System.out.println("Error decompressing entry " + entry.getName() + ": " + e.getMessage());
+            return;
+        }
 
-            // Close progress dialog
-            SwingUtilities.invokeLater(() -> {
-                if (progressDialog != null) {
-                    progressDialog.dispose();
+        System.out.printf("Decompressed: %s%n", outputFile.getName());
+    }
+
+    // Extracts the entries of a zip stream in archive order. A stream can only be read
+    // front to back, so entries are decoded one after another on this thread, while
+    // the blocks within each entry are still decoded in parallel. Deduplicated entries
+    // are restored at the end, as in extractEntries. Any read error stops extraction,
+    // since the rest of the stream cannot be trusted.
+    private static void extractStream(ZipInputStream zis, File saveDirectory) throws IOException {
+        List<File[]> references = new ArrayList<>(); // {copy, original}
+        boolean isFolderZip = false;
+        boolean firstEntry = true;
+
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (entry.getName().equals(ArchiveIndex.ENTRY_NAME)) {
+                continue; // Archive metadata, not a file
+            }
+
+            // Check if entries contain path separators (indicating a folder)
+            if (firstEntry) {
+                isFolderZip = entry.getName().contains("/");
+                firstEntry = false;
+            }
+
+            if (entry.isDirectory()) {
+                new File(saveDirectory, entry.getName()).mkdirs();
+                continue;
+            }
+
+            updateProgress();
+            File outputFile = outputFileFor(entry.getName(), saveDirectory, isFolderZip);
+            if (outputFile.getParentFile() != null && !outputFile.getParentFile().exists()) {
+                outputFile.getParentFile().mkdirs();
+            }
+
+            // The entry cannot be reopened, so its header is read under a mark and a
+            // plain ZIP entry is copied from the start after a reset. The stream is not
+            // closed, as that would close the archive.
+            BufferedInputStream in = new BufferedInputStream(zis, 64 * 1024);
+            in.mark(ENTRY_HEADER_LIMIT);
+            String original;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+                try {
+                    original = readEntry(new DataInputStream(in), out, CompressionSettings.getBlockPool());
+                } catch (NotByteCypherEntryException e) {
+                    in.reset();
+                    in.transferTo(out);
+                    original = null;
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unreadable entry " + entry.getName() + ": " + e.getMessage(), e);
                 }
-            });
+            }
 
-            if (processedFiles == 0) {
-                System.out.println("No files found in the archive.");
-                JOptionPane.showMessageDialog(null,
-                        "No files found in the archive.",
-                        "Decompression Result", JOptionPane.WARNING_MESSAGE);
+            if (original != null) {
+                references.add(new File[] { outputFile, referenceTargetFor(original, saveDirectory, isFolderZip) });
             } else {
-                System.out.println("Decompression successful! Files saved at: " + saveDirectory.getAbsolutePath());
-                JOptionPane.showMessageDialog(null,
-                        "Decompression successful!\nFiles saved at: " + saveDirectory.getAbsolutePath(),
-                        "Decompression Complete", JOptionPane.INFORMATION_MESSAGE);
+                System.out.printf("Decompressed: %s%n", outputFile.getName());
             }
+        }
 
+        for (File[] reference : references) {
+            materializeReference(reference[0], reference[1]);
+        }
+    }
+
+    private static void materializeReference(File copy, File original) {
+        try {
+            Files.copy(original.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.printf("Decompressed: %s (copy of %s)%n", copy.getName(), original.getName());
         } catch (IOException e) {
-            // Close progress dialog
-            SwingUtilities.invokeLater(() -> {
-                if (progressDialog != null) {
-                    progressDialog.dispose();
-                }
-            });
+            System.out.println("Error restoring duplicate " + copy.getName() + ": " + e.getMessage());
+        }
+    }
 
-            System.out.println("Decompression failed: " + e.getMessage());
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null,
-                    "Decompression failed: " + e.getMessage(),
-                    "Error", JOptionPane.ERROR_MESSAGE);
+    // Longest ByteCypher entry header: a modified-UTF-8 method name and the original size
+    private static final int ENTRY_HEADER_LIMIT = 2 + 65535 + 8;
+
+    // Thrown when an entry does not start with a ByteCypher header.
+    private static class NotByteCypherEntryException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        NotByteCypherEntryException() {
+            super("Not a ByteCypher entry");
         }
     }
 
+    // Reads one ByteCypher entry (method, original size, then the method's payload)
+    // and writes the decompressed contents to out. For a deduplicated entry nothing is
+    // written and the name of the entry holding its data is returned instead. Blocks
+    // are decoded on blockPool, or inline when it is null.
+    private static String readEntry(DataInputStream dis, OutputStream out, ForkJoinPool blockPool)
+            throws IOException, ClassNotFoundException {
+        String compressionMethod;
+        long originalSize;
+        try {
+            compressionMethod = dis.readUTF();
+            originalSize = dis.readLong();
+        } catch (IOException e) {
+            throw new NotByteCypherEntryException();
+        }
+
+        if (compressionMethod.equals("blocks")) {
+            // Current format: blocks are decoded in parallel and written straight into the output file
+            BlockCompression.decompress(dis, out, blockPool);
+            return null;
+        }
+        if (compressionMethod.equals("ref")) {
+            // Same contents as an earlier entry, restored once that entry is extracted
+            return dis.readUTF();
+        }
+
+        // Older archives hold the whole file as a single payload
+        byte[] decompressedData;
+
+        if (compressionMethod.equals("huffman2")) {
+            // Handle Huffman decompression (code lengths are part of the payload)
+            int dataLength = dis.readInt();
+            byte[] compressedData = new byte[dataLength];
+            dis.readFully(compressedData);
+
+            decompressedData = new HuffmanCompression().decompress(compressedData, originalSize);
+        } else if (compressionMethod.equals("huffman")) {
+            // Handle Huffman decompression for older archives, which stored a serialized tree
+            ObjectInputStream ois = new ObjectInputStream(dis);
+            ois.setObjectInputFilter(info -> info.serialClass() == null
+                    || info.serialClass() == HuffmanCompression.Node.class
+                    ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED);
+            HuffmanCompression huffman = new HuffmanCompression();
+            HuffmanCompression.Node tree = (HuffmanCompression.Node) ois.readObject();
+            huffman.setTree(tree);
+
+            int dataLength = dis.readInt();
+            byte[] compressedData = new byte[dataLength];
+            dis.readFully(compressedData);
+
+            decompressedData = huffman.decompress(compressedData, originalSize);
+        } else if (compressionMethod.equals("lz77v2")) {
+            // Handle compact-token LZ77 decompression
+            int dataLength = dis.readInt();
+            byte[] compressedData = new byte[dataLength];
+            dis.readFully(compressedData);
+
+            decompressedData = LZ77.decompressV2(compressedData, (int) originalSize);
+        } else if (compressionMethod.equals("lz77")) {
+            // Handle LZ77 decompression (archives written before lz77v2)
+            int dataLength = dis.readInt();
+            byte[] compressedData = new byte[dataLength];
+            dis.readFully(compressedData);
+
+            decompressedData = LZ77.decompress(compressedData, (int) originalSize);
+        } else if (compressionMethod.equals("rle")) {
+            // Handle RLE decompression
+            int dataLength = dis.readInt();
+            byte[] compressedData = new byte[dataLength];
+            dis.readFully(compressedData);
+
+            decompressedData = RLE.decompress(compressedData);
+        } else if (compressionMethod.equals("store")) {
+            // Handle stored files (no compression)
+            int dataLength = dis.readInt();
+            decompressedData = new byte[dataLength];
+            dis.readFully(decompressedData);
+        } else {
+            throw new NotByteCypherEntryException();
+        }
+
+        out.write(decompressedData);
+        return null;
+    }
+
     private static void updateProgress() {
-        processedFiles++;
+        int current = processedFiles.incrementAndGet();
         SwingUtilities.invokeLater(() -> {
-            if (progressBar != null) {
-                progressBar.setValue(processedFiles);
-                progressBar.setString("Extracting " + processedFiles + "/" + totalFiles + " files...");
+            if (progressBar != null && totalFiles == 0) {
+                progressBar.setString("Extracting " + current + " files...");
+            } else if (progressBar != null) {
+                progressBar.setValue(current);
+                progressBar.setString("Extracting " + current + "/" + totalFiles + " files...");
             }
         });
     }
-
-    private static int countFilesInZip(String zipFilePath) throws IOException {
-        int count = 0;
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFilePath))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                if (!entry.isDirectory()) {
-                    count++;
-                }
-            }
-        }
-        return count > 0 ? count : 1; // At least 1 to avoid division by zero
-    }
 }
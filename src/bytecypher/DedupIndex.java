@@ -0,0 +1,115 @@
+package bytecypher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Finds files with identical contents while a folder is walked. Files are grouped by
+// size first, so a file is only hashed once another file of the same size shows up;
+// within a size group SHA-256 decides. Only the walking thread adds files, while
+// workers compare them.
+class DedupIndex {
+
+    private final Map<Long, SizeGroup> filesBySize = new HashMap<>();
+
+    // Registers a file found by the walk, in archive order.
+    FileRecord add(Path file, String entryName, long size) {
+        if (size == 0) { // Nothing to gain from referencing empty files
+            return new FileRecord(file, entryName, null, 0);
+        }
+        SizeGroup group = filesBySize.computeIfAbsent(size, s -> new SizeGroup());
+        synchronized (group) {
+            FileRecord record = new FileRecord(file, entryName, group, group.records.size());
+            group.records.add(record);
+            return record;
+        }
+    }
+
+    // Files of one size in archive order, and the first of them for each hash. Records
+    // are indexed in archive order as later records ask for their original, so the
+    // map only ever holds files that are not duplicates themselves.
+    private static class SizeGroup {
+
+        final List<FileRecord> records = new ArrayList<>(1);
+        final Map<ByteBuffer, FileRecord> firstByHash = new HashMap<>();
+        int indexed; // Records before this position are in firstByHash
+
+        // Indexes every record before this one, hashing those not hashed yet outside
+        // the lock so workers of the same size group still hash in parallel.
+        String findOriginal(FileRecord record, byte[] hash) throws IOException {
+            while (true) {
+                FileRecord next;
+                synchronized (this) {
+                    while (indexed < record.position && records.get(indexed).knownHash() != null) {
+                        FileRecord indexedRecord = records.get(indexed++);
+                        firstByHash.putIfAbsent(ByteBuffer.wrap(indexedRecord.knownHash()), indexedRecord);
+                    }
+                    if (indexed >= record.position) {
+                        // Later records may have indexed past this one already
+                        FileRecord original = firstByHash.get(ByteBuffer.wrap(hash));
+                        return original == null || original.position >= record.position ? null : original.entryName;
+                    }
+                    next = records.get(indexed);
+                }
+                next.hash();
+            }
+        }
+    }
+
+    static class FileRecord {
+
+        final Path file;
+        final String entryName;
+        private final SizeGroup group; // Null for empty files
+        private final int position;    // Index in the group's records
+        private byte[] hash;
+
+        private FileRecord(Path file, String entryName, SizeGroup group, int position) {
+            this.file = file;
+            this.entryName = entryName;
+            this.group = group;
+            this.position = position;
+        }
+
+        // Returns the entry name of the first earlier file with the same contents, or
+        // null if there is none. That file is never a duplicate itself, so references
+        // always point to an entry that holds the data.
+        String findOriginal() throws IOException {
+            if (group == null || position == 0) {
+                return null; // No earlier file of this size, so no need to read this one yet
+            }
+            return group.findOriginal(this, hash());
+        }
+
+        // Hash already known, from the previous archive of an incremental run or from
+        // the pass that encoded the file.
+        synchronized void setHash(byte[] hash) {
+            this.hash = hash;
+        }
+
+        synchronized byte[] knownHash() {
+            return hash;
+        }
+
+        // Computed on first use; callers on other workers wait instead of hashing twice.
+        synchronized byte[] hash() throws IOException {
+            if (hash == null) {
+                hash = sha256(file);
+            }
+            return hash;
+        }
+    }
+
+    static byte[] sha256(Path file) throws IOException {
+        try {
+            return MultiDigest.digest(file, false, "SHA-256")[0];
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+}
@@ -1,20 +1,46 @@
-
 package bytecypher;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.*;
-import java.security.spec.KeySpec;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 import javax.swing.*;
 
+// New files are written in the segmented AES-GCM format of SegmentedEncryption.
+// Files from earlier versions have the layout
+//
+//   [salt: 16 bytes][IV: 16 bytes][name length: 1 byte][original file name][AES-CBC ciphertext]
+//
+// and are still decrypted. Their ciphertext is streamed through the cipher in
+// fixed-size chunks, so memory use does not depend on the file size.
 public class Encryption {
 
-    private static final String ALGORITHM = "AES";
     private static final String CIPHER_INSTANCE = "AES/CBC/PKCS5Padding";
-    private static final int KEY_SIZE = 256;
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+
+    private static final int BUFFER_SIZE = 1 << 20; // 1 MB of input per cipher update
+
+    // Each thread reuses one pair of direct buffers, so streaming many files does not
+    // allocate new off-heap memory per file. The output buffer has room for the block
+    // the cipher may carry over from the previous update.
+    private static final ThreadLocal<ByteBuffer[]> BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[] {
+        ByteBuffer.allocateDirect(BUFFER_SIZE), ByteBuffer.allocateDirect(BUFFER_SIZE + 2 * IV_LENGTH)
+    });
 
     public static void encrypt() {
         String inputPath = FileSelector.selectFile();
@@ -40,65 +66,15 @@ public class Encryption {
         //     savePath += ".secfile";
         // }
 
-        // Ask for password
-        JPasswordField pf = new JPasswordField();
-        int option = JOptionPane.showConfirmDialog(null, pf, "Enter a strong password:", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
-
-        if (option != JOptionPane.OK_OPTION) {
-            System.out.println("Password entry cancelled. Encryption aborted.");
-            return;
-        }
-
-        char[] password = pf.getPassword();
-        if (password.length < 8) {
-            System.out.println("Password too short. Please use at least 8 characters.");
+        char[] password = askPassword(true, "Encryption");
+        if (password == null) {
             return;
         }
 
         System.out.println("Encrypting...");
-        try {
-            // Generate a secure key from the password
-            SecureRandom random = new SecureRandom();
-            byte[] salt = new byte[16];
-            random.nextBytes(salt);
-
-            // Generate IV
-            byte[] iv = new byte[16];
-            random.nextBytes(iv);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-
-            // Generate key
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            KeySpec spec = new PBEKeySpec(password, salt, 65536, KEY_SIZE);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKey secretKey = new SecretKeySpec(tmp.getEncoded(), ALGORITHM);
-
-            // Initialize Cipher
-            Cipher cipher = Cipher.getInstance(CIPHER_INSTANCE);
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
-
-            // Create output streams
-            try (FileOutputStream fos = new FileOutputStream(savePath); BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-
-                // Write salt and IV first
-                bos.write(salt);
-                bos.write(iv);
-
-                // Store original filename in the encrypted file (optional)
-                byte[] fileNameBytes = inputFile.getName().getBytes("UTF-8");
-                bos.write(fileNameBytes.length); // Storing filename length (1 byte - limits filenames to 255 chars)
-                bos.write(fileNameBytes);        // Storing actual filename
-
-                // Read original file and encrypt it directly
-                byte[] fileData = Files.readAllBytes(inputFile.toPath());
-                byte[] encryptedData = cipher.doFinal(fileData);
-
-                // Write encrypted data
-                bos.write(encryptedData);
-
-                System.out.println("Encryption successful! Encrypted file saved at: " + savePath);
-            }
-
+        try (KeySession keys = new KeySession(password)) {
+            encryptFile(inputFile.toPath(), Paths.get(savePath), keys);
+            System.out.println("Encryption successful! Encrypted file saved at: " + savePath);
         } catch (Exception e) {
             System.out.println("Encryption failed: " + e.getMessage());
             e.printStackTrace();
@@ -126,97 +102,469 @@ public class Encryption {
             return;
         }
 
-        // Ask for password
-        JPasswordField pf = new JPasswordField();
-        int option = JOptionPane.showConfirmDialog(null, pf, "Enter your password:", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        char[] password = askPassword(false, "Decryption");
+        if (password == null) {
+            return;
+        }
 
-        if (option != JOptionPane.OK_OPTION) {
-            System.out.println("Password entry cancelled. Decryption aborted.");
+        System.out.println("Decrypting...");
+        try (KeySession keys = new KeySession(password)) {
+            File outputFile = decryptFile(Paths.get(inputPath), new File(savePath), keys, true);
+            if (outputFile != null) {
+                System.out.println("Decryption successful! File saved as: " + outputFile.getAbsolutePath());
+            }
+        } catch (BadPaddingException e) {
+            // Also covers a GCM segment that failed authentication
+            System.out.println("Decryption failed: Incorrect password or corrupted file.");
+        } catch (Exception e) {
+            System.out.println("Decryption failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        // Clear password from memory
+        Arrays.fill(password, '\0');
+    }
+
+    // Encrypts or decrypts a selection of files with one password. The expensive
+    // PBKDF2 step runs once for the whole batch (see KeySession), so a batch of many
+    // small files is no longer dominated by key derivation. Files whose output
+    // already exists are skipped rather than overwritten.
+    public static void batch() {
+        String[] modes = {"Encrypt", "Decrypt"};
+        int mode = JOptionPane.showOptionDialog(null, "Encrypt or decrypt the selected files?",
+                "Batch Encryption", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, modes, modes[0]);
+        if (mode == JOptionPane.CLOSED_OPTION) {
+            System.out.println("Operation cancelled.");
             return;
         }
+        boolean encrypting = mode == 0;
 
-        char[] password = pf.getPassword();
+        List<String> inputPaths = FileSelector.selectFiles();
+        if (inputPaths == null || inputPaths.isEmpty()) {
+            System.out.println("No files selected. Operation cancelled.");
+            return;
+        }
 
-        System.out.println("Decrypting...");
-        try {
-            // Read encrypted file
-            byte[] fileData = Files.readAllBytes(Paths.get(inputPath));
+        String savePath = FileSelector.selectOutputFolder(encrypting ? "encrypted files" : "decrypted files");
+        if (savePath == null) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
 
-            if (fileData.length < 33) { // 16 (salt) + 16 (IV) + 1 (filename length)
-                throw new IllegalArgumentException("Invalid encrypted file format");
+        String operation = encrypting ? "Encryption" : "Decryption";
+        char[] password = askPassword(encrypting, operation);
+        if (password == null) {
+            return;
+        }
+
+        System.out.println((encrypting ? "Encrypting " : "Decrypting ") + inputPaths.size() + " files...");
+        File outputDir = new File(savePath);
+        outputDir.mkdirs();
+        int processed = 0;
+        int failed = 0;
+        long start = System.nanoTime();
+
+        try (KeySession keys = new KeySession(password)) {
+            for (String inputPath : inputPaths) {
+                Path input = Paths.get(inputPath);
+                try {
+                    if (encrypting) {
+                        Path output = outputDir.toPath().resolve(input.getFileName() + ".secfile");
+                        if (Files.exists(output)) {
+                            System.out.println("Skipped " + input.getFileName() + ": " + output + " already exists");
+                            continue;
+                        }
+                        encryptFile(input, output, keys);
+                        System.out.println("Encrypted: " + output);
+                        processed++;
+                    } else if (!inputPath.endsWith(".secfile")) {
+                        System.out.println("Skipped " + input.getFileName() + ": not a .secfile");
+                    } else {
+                        File output = decryptFile(input, outputDir, keys, false);
+                        if (output != null) {
+                            System.out.println("Decrypted: " + output);
+                            processed++;
+                        }
+                    }
+                } catch (BadPaddingException e) {
+                    System.out.println("Failed " + input.getFileName() + ": incorrect password or corrupted file");
+                    failed++;
+                } catch (Exception e) {
+                    System.out.println("Failed " + input.getFileName() + ": " + e.getMessage());
+                    failed++;
+                }
             }
+        } finally {
+            // Clear password from memory
+            Arrays.fill(password, '\0');
+        }
 
-            // Extract salt and IV
-            byte[] salt = Arrays.copyOfRange(fileData, 0, 16);
-            byte[] iv = Arrays.copyOfRange(fileData, 16, 32);
+        String summary = String.format("%s finished in %.1f s: %d of %d files done, %d failed.", operation,
+                (System.nanoTime() - start) / 1e9, processed, inputPaths.size(), failed);
+        System.out.println(summary);
+        JOptionPane.showMessageDialog(null, summary, "Batch " + operation,
+                failed == 0 ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+    }
 
-            // Extract filename
-            int fileNameLength = fileData[32] & 0xff; // Convert to unsigned
+    // Encrypts every file under a folder into a mirrored tree of .secfiles, or decrypts
+    // such a tree back. Files are processed concurrently on a bounded worker pool with
+    // one key session, so the whole tree keeps every core busy instead of going one
+    // file at a time. Shrink & Encrypt gives a single encrypted container instead.
+    public static void folder() {
+        String[] modes = {"Encrypt", "Decrypt"};
+        int mode = JOptionPane.showOptionDialog(null, "Encrypt or decrypt a folder?",
+                "Folder Encryption", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, modes, modes[0]);
+        if (mode == JOptionPane.CLOSED_OPTION) {
+            System.out.println("Operation cancelled.");
+            return;
+        }
+        boolean encrypting = mode == 0;
 
-            if (fileData.length < 33 + fileNameLength) {
-                throw new IllegalArgumentException("Invalid encrypted file format");
-            }
+        String inputPath = FileSelector.selectFolder();
+        if (inputPath == null) {
+            System.out.println("No folder selected. Operation cancelled.");
+            return;
+        }
 
-            byte[] fileNameBytes = Arrays.copyOfRange(fileData, 33, 33 + fileNameLength);
-            String originalFileName = new String(fileNameBytes, "UTF-8");
+        String savePath = FileSelector.selectOutputFolder(encrypting ? "encrypted folder" : "decrypted folder");
+        if (savePath == null) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
 
-            // Get encrypted data
-            byte[] encryptedData = Arrays.copyOfRange(fileData, 33 + fileNameLength, fileData.length);
+        Path root = Paths.get(inputPath).toAbsolutePath().normalize();
+        Path outputRoot = Paths.get(savePath).toAbsolutePath().normalize().resolve(root.getFileName());
+        if (outputRoot.startsWith(root)) {
+            // The walk would pick up the files being written
+            System.out.println("The output location cannot be inside the selected folder.");
+            JOptionPane.showMessageDialog(null, "The output location cannot be inside the selected folder.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
-            // Generate key from password and salt
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-            KeySpec spec = new PBEKeySpec(password, salt, 65536, KEY_SIZE);
-            SecretKey tmp = factory.generateSecret(spec);
-            SecretKey secretKey = new SecretKeySpec(tmp.getEncoded(), ALGORITHM);
+        String operation = encrypting ? "Encryption" : "Decryption";
+        char[] password = askPassword(encrypting, operation);
+        if (password == null) {
+            return;
+        }
 
-            // Initialize cipher for decryption
-            Cipher cipher = Cipher.getInstance(CIPHER_INSTANCE);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
+        System.out.println((encrypting ? "Encrypting " : "Decrypting ") + root + "...");
+        long start = System.nanoTime();
+        try (KeySession keys = new KeySession(password)) {
+            int[] counts = processFolder(root, outputRoot, keys, encrypting);
+            String summary = String.format("%s finished in %.1f s: %d files done, %d skipped, %d failed.%nOutput: %s",
+                    operation, (System.nanoTime() - start) / 1e9, counts[0], counts[1], counts[2], outputRoot);
+            System.out.println(summary);
+            JOptionPane.showMessageDialog(null, summary, "Folder " + operation,
+                    counts[2] == 0 ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        } catch (IOException e) {
+            System.out.println(operation + " failed: " + e.getMessage());
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, operation + " failed: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        } finally {
+            // Clear password from memory
+            Arrays.fill(password, '\0');
+        }
+    }
 
-            try {
-                // Decrypt the data
-                byte[] decryptedData = cipher.doFinal(encryptedData);
+    // Walks root on the calling thread and encrypts (or decrypts) each file into the
+    // matching folder under outputRoot on a pool of worker threads. At most twice the
+    // worker count of files are queued at once. A failed file is reported and the walk
+    // goes on. Returns the number of files done, skipped and failed.
+    static int[] processFolder(Path root, Path outputRoot, KeySession keys, boolean encrypting) throws IOException {
+        int threads = CompressionSettings.getWorkerThreads();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<?>> pending = new ArrayDeque<>();
+        int maxPending = threads * 2;
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
 
-                // Create output file path with original filename
-                File outputDir = new File(savePath);
-                if (!outputDir.exists()) {
-                    outputDir.mkdirs();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(outputRoot.resolve(root.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
                 }
 
-                File outputFile = new File(outputDir, originalFileName);
-
-                // If file exists, ask for confirmation
-                if (outputFile.exists()) {
-                    int overwrite = JOptionPane.showConfirmDialog(null,
-                            "File '" + originalFileName + "' already exists. Overwrite?",
-                            "File Exists", JOptionPane.YES_NO_OPTION);
-                    if (overwrite != JOptionPane.YES_OPTION) {
-                        // Ask for a new filename
-                        String newName = JOptionPane.showInputDialog(
-                                "Enter a new filename:", originalFileName);
-                        if (newName == null || newName.trim().isEmpty()) {
-                            System.out.println("Decryption cancelled by user.");
-                            return;
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path targetDir = outputRoot.resolve(root.relativize(file.getParent()));
+                    pending.addLast(workers.submit(() -> {
+                        String name = file.getFileName().toString();
+                        try {
+                            if (encrypting) {
+                                Path output = targetDir.resolve(name + ".secfile");
+                                if (Files.exists(output)) {
+                                    System.out.println("Skipped " + file + ": " + output + " already exists");
+                                    skipped.incrementAndGet();
+                                    return;
+                                }
+                                encryptFile(file, output, keys);
+                                System.out.println("Encrypted: " + root.relativize(file));
+                                processed.incrementAndGet();
+                            } else if (!name.endsWith(".secfile")) {
+                                System.out.println("Skipped " + file + ": not a .secfile");
+                                skipped.incrementAndGet();
+                            } else if (decryptFile(file, targetDir.toFile(), keys, false) != null) {
+                                System.out.println("Decrypted: " + root.relativize(file));
+                                processed.incrementAndGet();
+                            } else {
+                                skipped.incrementAndGet();
+                            }
+                        } catch (BadPaddingException e) {
+                            System.out.println("Failed " + file + ": incorrect password or corrupted file");
+                            failed.incrementAndGet();
+                        } catch (Exception e) {
+                            System.out.println("Failed " + file + ": " + e.getMessage());
+                            failed.incrementAndGet();
                         }
-                        outputFile = new File(outputDir, newName);
+                    }));
+                    if (pending.size() > maxPending) {
+                        await(pending.removeFirst());
                     }
+                    return FileVisitResult.CONTINUE;
                 }
+            });
 
-                // Write decrypted data to file
-                Files.write(outputFile.toPath(), decryptedData);
+            while (!pending.isEmpty()) {
+                await(pending.removeFirst());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return new int[] { processed.get(), skipped.get(), failed.get() };
+    }
 
-                System.out.println("Decryption successful! File saved as: " + outputFile.getAbsolutePath());
+    // Waits for a folder task; the tasks report their own failures.
+    private static void await(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Folder processing interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
 
-            } catch (BadPaddingException e) {
-                System.out.println("Decryption failed: Incorrect password or corrupted file.");
+    // Encrypts one file to output with a key of its own from the session. Partial
+    // output is removed if anything fails.
+    static void encryptFile(Path input, Path output, KeySession keys) throws IOException, GeneralSecurityException {
+        try {
+            // Fresh file salt and base nonce, and a key derived from the session's master key
+            SegmentedEncryption.Header header = SegmentedEncryption.newHeader(input.getFileName().toString(),
+                    SegmentedEncryption.DEFAULT_SEGMENT_SIZE, keys);
+            SecretKey key = header.key(keys);
+
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE)) {
+                SegmentedEncryption.encrypt(in, out, header, key, CompressionSettings.getBlockPool());
             }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            deletePartialOutput(output);
+            throw e;
+        }
+    }
 
-        } catch (Exception e) {
-            System.out.println("Decryption failed: " + e.getMessage());
-            e.printStackTrace();
+    // Decrypts one file into outputDir under the name stored in it and returns the
+    // file written. If that file exists, the user is asked whether to overwrite it when
+    // interactive; otherwise, or if the user cancels, nothing is written and null is
+    // returned.
+    static File decryptFile(Path inputPath, File outputDir, KeySession keys, boolean interactive)
+            throws IOException, GeneralSecurityException {
+        Path tempFile = null;
+        try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            SegmentedEncryption.Header segmented = SegmentedEncryption.readHeader(in);
+            String storedName;
+            SecretKey key;
+            Cipher cipher = null;
+
+            if (segmented != null) {
+                storedName = segmented.fileName;
+                key = segmented.key(keys);
+            } else {
+                // Older CBC file: read salt, IV and filename; the channel is left at the start of the ciphertext
+                DataInputStream header = new DataInputStream(Channels.newInputStream(in));
+                byte[] salt = new byte[SALT_LENGTH];
+                byte[] iv = new byte[IV_LENGTH];
+                byte[] fileNameBytes;
+                try {
+                    header.readFully(salt);
+                    header.readFully(iv);
+                    fileNameBytes = new byte[header.readUnsignedByte()];
+                    header.readFully(fileNameBytes);
+                } catch (EOFException e) {
+                    throw new IllegalArgumentException("Invalid encrypted file format");
+                }
+                storedName = new String(fileNameBytes, StandardCharsets.UTF_8);
+                key = keys.fileKey(KeySession.KDF_PBKDF2, salt, null);
+
+                // Initialize cipher for decryption
+                cipher = Cipher.getInstance(CIPHER_INSTANCE);
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            }
+
+            // Only the last path element is used, so a crafted name cannot escape the output folder
+            Path namePath = Paths.get(storedName).getFileName();
+            if (namePath == null) {
+                throw new IllegalArgumentException("Invalid encrypted file format");
+            }
+            String originalFileName = namePath.toString();
+
+            // Create output file path with original filename
+            if (!outputDir.exists()) {
+                outputDir.mkdirs();
+            }
+
+            File outputFile = new File(outputDir, originalFileName);
+
+            // If file exists, ask for confirmation before anything is written
+            if (outputFile.exists() && !interactive) {
+                System.out.println("Skipped " + inputPath.getFileName() + ": " + outputFile + " already exists");
+                return null;
+            }
+            if (outputFile.exists()) {
+                int overwrite = JOptionPane.showConfirmDialog(null,
+                        "File '" + originalFileName + "' already exists. Overwrite?",
+                        "File Exists", JOptionPane.YES_NO_OPTION);
+                if (overwrite != JOptionPane.YES_OPTION) {
+                    // Ask for a new filename
+                    String newName = JOptionPane.showInputDialog(
+                            "Enter a new filename:", originalFileName);
+                    if (newName == null || newName.trim().isEmpty()) {
+                        System.out.println("Decryption cancelled by user.");
+                        return null;
+                    }
+                    outputFile = new File(outputDir, newName);
+                }
+            }
+
+            // Decrypt into a temporary file next to the target, which is only replaced
+            // once the whole file has decrypted and authenticated (or the padding checked out)
+            tempFile = Files.createTempFile(outputDir.toPath(), "decrypt-", ".part");
+            try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                if (segmented != null) {
+                    SegmentedEncryption.decrypt(in, out, segmented, key, CompressionSettings.getBlockPool());
+                } else {
+                    transform(in, out, cipher);
+                }
+            }
+            Files.move(tempFile, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            tempFile = null;
+            return outputFile;
+        } finally {
+            deletePartialOutput(tempFile);
         }
+    }
 
-        // Clear password from memory
-        Arrays.fill(password, '\0');
+    // Asks for a password, or returns null if the dialog is cancelled. A password for
+    // new files must be at least 8 characters long.
+    static char[] askPassword(boolean newPassword, String operation) {
+        JPasswordField pf = new JPasswordField();
+        int option = JOptionPane.showConfirmDialog(null, pf,
+                newPassword ? "Enter a strong password:" : "Enter your password:",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+
+        if (option != JOptionPane.OK_OPTION) {
+            System.out.println("Password entry cancelled. " + operation + " aborted.");
+            return null;
+        }
+
+        char[] password = pf.getPassword();
+        if (newPassword && password.length < 8) {
+            System.out.println("Password too short. Please use at least 8 characters.");
+            Arrays.fill(password, '\0');
+            return null;
+        }
+        return password;
+    }
+
+    // Wraps out so that everything written to it is stored as an encrypted file holding
+    // fileName. Closing the returned stream writes the final segment and closes out.
+    static OutputStream encryptingStream(OutputStream out, String fileName, char[] password) throws IOException {
+        try (KeySession keys = new KeySession(password)) {
+            SegmentedEncryption.Header header = SegmentedEncryption.newHeader(fileName,
+                    SegmentedEncryption.DEFAULT_SEGMENT_SIZE, keys);
+            return new SegmentedEncryption.SegmentOutputStream(out, header, header.key(keys));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key derivation failed: " + e.getMessage(), e);
+        }
+    }
+
+    // Opens an encrypted file as a stream of its decrypted contents. Only files in the
+    // segmented format can be read this way, since their segments are authenticated
+    // as they are read.
+    static InputStream decryptingStream(Path file, char[] password) throws IOException {
+        FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+        try (KeySession keys = new KeySession(password)) {
+            SegmentedEncryption.Header header = SegmentedEncryption.readHeader(in);
+            if (header == null) {
+                throw new IOException("Not an authenticated .secfile; decrypt it with Secure Decryption first");
+            }
+            return new SegmentedEncryption.SegmentInputStream(in, header, header.key(keys));
+        } catch (GeneralSecurityException e) {
+            in.close();
+            throw new IOException("Key derivation failed: " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // Runs everything left in the input channel through the cipher, finishing with
+    // doFinal, and returns the number of bytes written.
+    static long transform(ReadableByteChannel in, WritableByteChannel out, Cipher cipher)
+            throws IOException, GeneralSecurityException {
+        ByteBuffer[] buffers = BUFFERS.get();
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+        long written = 0;
+
+        input.clear();
+        while (in.read(input) != -1) {
+            if (input.hasRemaining()) {
+                continue; // Fill the buffer before handing it to the cipher
+            }
+            input.flip();
+            output.clear();
+            cipher.update(input, output);
+            output.flip();
+            written += writeFully(out, output);
+            input.clear();
+        }
+
+        // Whatever is left over is a partial buffer
+        input.flip();
+        output.clear();
+        cipher.doFinal(input, output);
+        output.flip();
+        written += writeFully(out, output);
+        return written;
+    }
+
+    private static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return length;
+    }
+
+    private static void deletePartialOutput(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not remove incomplete output " + path + ": " + e.getMessage());
+        }
     }
 }
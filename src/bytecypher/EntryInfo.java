@@ -0,0 +1,67 @@
+package bytecypher;
+
+import java.util.HexFormat;
+
+// What an archive entry records about its source file, kept in the zip entry
+// comment so a later incremental run can tell unchanged files apart without
+// decoding the entry:
+//
+//   bytecypher;size=<bytes>;mtime=<millis>;sha256=<hex>[;ref]
+//
+// "ref" marks entries that only point to another entry with the same contents.
+class EntryInfo {
+
+    private static final String PREFIX = "bytecypher;";
+
+    final long size;
+    final long modifiedTime;
+    final byte[] sha256;
+    final boolean reference;
+
+    EntryInfo(long size, long modifiedTime, byte[] sha256, boolean reference) {
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.sha256 = sha256;
+        this.reference = reference;
+    }
+
+    // Same size and modification time as last time, so the contents are trusted as unchanged.
+    boolean matches(long size, long modifiedTime) {
+        return this.size == size && this.modifiedTime == modifiedTime;
+    }
+
+    String toComment() {
+        return PREFIX + "size=" + size + ";mtime=" + modifiedTime + ";sha256=" + HexFormat.of().formatHex(sha256)
+                + (reference ? ";ref" : "");
+    }
+
+    // Returns null for entries without a comment or written by another tool.
+    static EntryInfo parse(String comment) {
+        if (comment == null || !comment.startsWith(PREFIX)) {
+            return null;
+        }
+
+        long size = -1;
+        long modifiedTime = -1;
+        byte[] sha256 = null;
+        boolean reference = false;
+        try {
+            for (String field : comment.substring(PREFIX.length()).split(";")) {
+                if (field.startsWith("size=")) {
+                    size = Long.parseLong(field.substring(5));
+                } else if (field.startsWith("mtime=")) {
+                    modifiedTime = Long.parseLong(field.substring(6));
+                } else if (field.startsWith("sha256=")) {
+                    sha256 = HexFormat.of().parseHex(field.substring(7));
+                } else if (field.equals("ref")) {
+                    reference = true;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        return size >= 0 && sha256 != null && sha256.length == 32
+                ? new EntryInfo(size, modifiedTime, sha256, reference) : null;
+    }
+}
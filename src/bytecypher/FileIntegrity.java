@@ -3,12 +3,20 @@ package bytecypher;
 import java.io.*;
 import java.nio.file.*;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 import javax.swing.*;
 
 public class FileIntegrity {
 
+    // Digests offered when generating a checksum file
+    private static final String[] ALGORITHMS = {"MD5", "SHA-1", "SHA-256", "SHA-512", "SHA3-256"};
+    private static final String MERKLE = "Merkle SHA-256 (parallel, locates damage)";
+
     public static void integrity() {
-        String[] options = {"Generate Checksum", "Verify Checksum"};
+        String[] options = {"Generate Checksum", "Verify Checksum", "Create Folder Manifest", "Verify Folder Manifest"};
         int choice = JOptionPane.showOptionDialog(null,
                 "Choose an integrity operation:",
                 "File Integrity",
@@ -20,6 +28,10 @@ public class FileIntegrity {
             generateChecksum();
         } else if (choice == 1) {
             verifyChecksum();
+        } else if (choice == 2) {
+            createManifest();
+        } else if (choice == 3) {
+            verifyManifest();
         }
     }
 
@@ -30,10 +42,17 @@ public class FileIntegrity {
             return;
         }
 
+        List<String> selected = selectAlgorithms();
+        if (selected == null) {
+            System.out.println("No checksum type selected. Operation cancelled.");
+            return;
+        }
+        boolean merkle = selected.remove(MERKLE);
+        String[] algorithms = selected.toArray(new String[0]);
+
         try {
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-            String checksumMD5 = calculateChecksum(fileData, "MD5");
-            String checksumSHA256 = calculateChecksum(fileData, "SHA-256");
+            String[] checksums = calculateChecksums(Paths.get(filePath), algorithms);
+            MerkleChecksum.Tree tree = merkle ? MerkleChecksum.build(Paths.get(filePath)) : null;
 
             String savePath = getSavePathForChecksum(filePath);
             if (savePath == null) {
@@ -41,19 +60,26 @@ public class FileIntegrity {
                 return;
             }
 
-            // Write checksums to file
+            // Write checksums to file, one "ALGORITHM: hex" line each
+            StringBuilder summary = new StringBuilder();
             try (PrintWriter writer = new PrintWriter(new FileWriter(savePath))) {
                 writer.println("File: " + new File(filePath).getName());
-                writer.println("MD5: " + checksumMD5);
-                writer.println("SHA-256: " + checksumSHA256);
+                for (int i = 0; i < algorithms.length; i++) {
+                    writer.println(algorithms[i] + ": " + checksums[i]);
+                    summary.append(algorithms[i]).append(": ").append(checksums[i]).append("\n");
+                }
+                if (tree != null) {
+                    tree.write(writer);
+                    summary.append("Merkle root (").append(tree.chunks.length).append(" chunks of ")
+                            .append(tree.chunkSize / (1024 * 1024)).append(" MB): ").append(tree.rootHex()).append("\n");
+                }
                 writer.println("Generated: " + java.time.LocalDateTime.now());
             }
 
             // Show checksums to user
             JTextArea textArea = new JTextArea(
                     "Checksums for: " + new File(filePath).getName() + "\n\n"
-                    + "MD5: " + checksumMD5 + "\n"
-                    + "SHA-256: " + checksumSHA256 + "\n\n"
+                    + summary + "\n"
                     + "Checksum file saved to: " + savePath);
             textArea.setEditable(false);
             textArea.setLineWrap(true);
@@ -93,51 +119,70 @@ public class FileIntegrity {
         String checksumFilePath = fileChooser.getSelectedFile().getAbsolutePath();
 
         try {
-            // Calculate current checksums
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-            String currentMD5 = calculateChecksum(fileData, "MD5");
-            String currentSHA256 = calculateChecksum(fileData, "SHA-256");
-
-            // Read expected checksums
-            String expectedMD5 = "";
-            String expectedSHA256 = "";
+            // Read expected checksums; any line naming a digest algorithm is checked
+            List<String> algorithms = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            Set<String> known = Security.getAlgorithms("MessageDigest");
+            List<String> lines = new ArrayList<>();
 
             try (BufferedReader reader = new BufferedReader(new FileReader(checksumFilePath))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("MD5:")) {
-                        expectedMD5 = line.substring(4).trim();
-                    } else if (line.startsWith("SHA-256:")) {
-                        expectedSHA256 = line.substring(8).trim();
+                    lines.add(line);
+                    int colon = line.indexOf(':');
+                    if (colon > 0 && known.contains(line.substring(0, colon).trim().toUpperCase())) {
+                        algorithms.add(line.substring(0, colon).trim().toUpperCase());
+                        expected.add(line.substring(colon + 1).trim());
                     }
                 }
             }
+            MerkleChecksum.Tree tree = MerkleChecksum.parse(lines);
+
+            if (algorithms.isEmpty() && tree == null) {
+                JOptionPane.showMessageDialog(null, "The selected file contains no checksums.",
+                        "File Verification", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
 
-            // Compare checksums
-            boolean md5Match = expectedMD5.equalsIgnoreCase(currentMD5);
-            boolean sha256Match = expectedSHA256.equalsIgnoreCase(currentSHA256);
+            // Calculate current checksums in a single pass over the file
+            String[] current = calculateChecksums(Paths.get(filePath), algorithms.toArray(new String[0]));
 
             StringBuilder resultMessage = new StringBuilder();
             resultMessage.append("Verification Results for: ").append(new File(filePath).getName()).append("\n\n");
 
-            resultMessage.append("MD5 Checksum:\n")
-                    .append("  Expected: ").append(expectedMD5).append("\n")
-                    .append("  Current:  ").append(currentMD5).append("\n")
-                    .append("  Status:   ").append(md5Match ? "MATCH ✓" : "DIFFERENT ✗").append("\n\n");
+            boolean allMatch = true;
+            for (int i = 0; i < current.length; i++) {
+                boolean match = expected.get(i).equalsIgnoreCase(current[i]);
+                allMatch &= match;
+                resultMessage.append(algorithms.get(i)).append(" Checksum:\n")
+                        .append("  Expected: ").append(expected.get(i)).append("\n")
+                        .append("  Current:  ").append(current[i]).append("\n")
+                        .append("  Status:   ").append(match ? "MATCH ✓" : "DIFFERENT ✗").append("\n\n");
+            }
 
-            resultMessage.append("SHA-256 Checksum:\n")
-                    .append("  Expected: ").append(expectedSHA256).append("\n")
-                    .append("  Current:  ").append(currentSHA256).append("\n")
-                    .append("  Status:   ").append(sha256Match ? "MATCH ✓" : "DIFFERENT ✗").append("\n\n");
+            List<long[]> damaged = null;
+            if (tree != null) {
+                damaged = MerkleChecksum.verify(Paths.get(filePath), tree, null);
+                allMatch &= damaged.isEmpty();
+                resultMessage.append("Merkle SHA-256 Checksum:\n")
+                        .append("  Root:     ").append(tree.rootHex()).append("\n")
+                        .append("  Status:   ").append(damaged.isEmpty() ? "MATCH ✓" : "DIFFERENT ✗").append("\n");
+                appendRanges(resultMessage, damaged);
+                resultMessage.append("\n");
+            }
 
-            if (md5Match && sha256Match) {
+            if (allMatch) {
                 resultMessage.append("VERIFICATION SUCCESSFUL: File integrity confirmed.");
                 JOptionPane.showMessageDialog(null, new JScrollPane(new JTextArea(resultMessage.toString())),
                         "File Verification", JOptionPane.INFORMATION_MESSAGE);
             } else {
                 resultMessage.append("VERIFICATION FAILED: File may have been modified or corrupted.");
-                JOptionPane.showMessageDialog(null, new JScrollPane(new JTextArea(resultMessage.toString())),
-                        "File Verification", JOptionPane.ERROR_MESSAGE);
+                if (damaged == null || damaged.isEmpty()) {
+                    JOptionPane.showMessageDialog(null, new JScrollPane(new JTextArea(resultMessage.toString())),
+                            "File Verification", JOptionPane.ERROR_MESSAGE);
+                } else {
+                    recheckDamagedRanges(Paths.get(filePath), tree, damaged, resultMessage.toString());
+                }
             }
 
         } catch (Exception e) {
@@ -146,11 +191,193 @@ public class FileIntegrity {
         }
     }
 
-    private static String calculateChecksum(byte[] data, String algorithm) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance(algorithm);
-        byte[] hash = digest.digest(data);
+    private static void createManifest() {
+        String folderPath = FileSelector.selectFolder();
+        if (folderPath == null) {
+            System.out.println("No folder selected. Operation cancelled.");
+            return;
+        }
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Save Folder Manifest");
+        fileChooser.setSelectedFile(new File(new File(folderPath).getName() + ".sha256"));
+        if (fileChooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION) {
+            System.out.println("No save location selected. Operation cancelled.");
+            return;
+        }
+        String savePath = fileChooser.getSelectedFile().getAbsolutePath();
+        if (!savePath.endsWith(".sha256")) {
+            savePath += ".sha256";
+        }
+
+        System.out.println("Hashing " + folderPath + "...");
+        long start = System.nanoTime();
+        try {
+            List<String> failed = FolderManifest.create(Paths.get(folderPath), Paths.get(savePath));
+            StringBuilder summary = new StringBuilder(String.format("Manifest written in %.1f s to:%n%s%n",
+                    (System.nanoTime() - start) / 1e9, savePath));
+            if (!failed.isEmpty()) {
+                summary.append("\nThese files could not be read and are not in the manifest:\n");
+                appendPaths(summary, failed);
+            }
+            System.out.println(summary);
+            JOptionPane.showMessageDialog(null, new JScrollPane(new JTextArea(summary.toString())),
+                    "Folder Manifest", failed.isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+        } catch (IOException e) {
+            System.out.println("Error creating manifest: " + e.getMessage());
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Error creating manifest: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private static void verifyManifest() {
+        String folderPath = FileSelector.selectFolder();
+        if (folderPath == null) {
+            System.out.println("No folder selected. Operation cancelled.");
+            return;
+        }
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Select Folder Manifest");
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        if (fileChooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) {
+            System.out.println("No manifest selected. Operation cancelled.");
+            return;
+        }
+        Path manifest = fileChooser.getSelectedFile().toPath();
+
+        System.out.println("Verifying " + folderPath + "...");
+        long start = System.nanoTime();
+        try {
+            FolderManifest.Report report = FolderManifest.verify(Paths.get(folderPath), manifest);
+            StringBuilder result = new StringBuilder(String.format(
+                    "Verification Results for: %s (%.1f s)%n%n%d files match%n%d mismatched, %d missing, %d extra, %d unreadable%n",
+                    new File(folderPath).getName(), (System.nanoTime() - start) / 1e9, report.verified,
+                    report.mismatched.size(), report.missing.size(), report.extra.size(), report.unreadable.size()));
+            appendSection(result, "Mismatched", report.mismatched);
+            appendSection(result, "Missing", report.missing);
+            appendSection(result, "Extra (not in manifest)", report.extra);
+            appendSection(result, "Unreadable", report.unreadable);
+            result.append(report.intact()
+                    ? "\nVERIFICATION SUCCESSFUL: Folder integrity confirmed."
+                    : "\nVERIFICATION FAILED: Folder differs from the manifest.");
+
+            System.out.println(result);
+            JTextArea textArea = new JTextArea(result.toString());
+            textArea.setEditable(false);
+            JScrollPane scrollPane = new JScrollPane(textArea);
+            scrollPane.setPreferredSize(new java.awt.Dimension(600, 400));
+            JOptionPane.showMessageDialog(null, scrollPane, "Folder Verification",
+                    report.intact() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+        } catch (IOException e) {
+            System.out.println("Error verifying manifest: " + e.getMessage());
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Error verifying manifest: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private static void appendSection(StringBuilder message, String title, List<String> paths) {
+        if (!paths.isEmpty()) {
+            message.append("\n").append(title).append(":\n");
+            appendPaths(message, paths);
+        }
+    }
+
+    // Lists paths up to a screenful; the console gets the same text
+    private static void appendPaths(StringBuilder message, List<String> paths) {
+        int shown = Math.min(paths.size(), 100);
+        for (int i = 0; i < shown; i++) {
+            message.append("  ").append(paths.get(i)).append("\n");
+        }
+        if (paths.size() > shown) {
+            message.append("  ... and ").append(paths.size() - shown).append(" more\n");
+        }
+    }
+
+    // Shows the result and, until the user closes it or the damage is gone, offers to
+    // re-check only the damaged ranges, e.g. after restoring them from a backup.
+    private static void recheckDamagedRanges(Path file, MerkleChecksum.Tree tree, List<long[]> damaged,
+            String message) throws IOException {
+        String[] options = {"Re-check Damaged Ranges", "Close"};
+        while (true) {
+            int choice = JOptionPane.showOptionDialog(null, new JScrollPane(new JTextArea(message)),
+                    "File Verification", JOptionPane.DEFAULT_OPTION, JOptionPane.ERROR_MESSAGE,
+                    null, options, options[1]);
+            if (choice != 0) {
+                return;
+            }
+
+            damaged = MerkleChecksum.verify(file, tree, damaged);
+            if (damaged.isEmpty()) {
+                JOptionPane.showMessageDialog(null,
+                        "The damaged ranges now match.\nVERIFICATION SUCCESSFUL: File integrity confirmed.",
+                        "File Verification", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            StringBuilder recheck = new StringBuilder("Re-check Results for: " + file.getFileName() + "\n\n");
+            appendRanges(recheck, damaged);
+            message = recheck.append("\nVERIFICATION FAILED: File may have been modified or corrupted.").toString();
+        }
+    }
+
+    // Lists damaged byte ranges, inclusive, up to a screenful
+    private static void appendRanges(StringBuilder message, List<long[]> ranges) {
+        int shown = Math.min(ranges.size(), 20);
+        for (int i = 0; i < shown; i++) {
+            long[] range = ranges.get(i);
+            message.append("  Damaged:  bytes ").append(range[0]).append(" - ").append(range[1] - 1)
+                    .append(" (").append(range[1] - range[0]).append(" bytes)\n");
+        }
+        if (ranges.size() > shown) {
+            message.append("  ... and ").append(ranges.size() - shown).append(" more damaged ranges\n");
+        }
+    }
+
+    // Asks which checksums to generate; MD5 and SHA-256 are preselected. Returns null
+    // if cancelled or nothing was chosen.
+    private static List<String> selectAlgorithms() {
+        String[] choices = Arrays.copyOf(ALGORITHMS, ALGORITHMS.length + 1);
+        choices[ALGORITHMS.length] = MERKLE;
+        JCheckBox[] boxes = new JCheckBox[choices.length];
+        JPanel panel = new JPanel(new java.awt.GridLayout(0, 1));
+        panel.add(new JLabel("Checksums to generate:"));
+        for (int i = 0; i < choices.length; i++) {
+            boxes[i] = new JCheckBox(choices[i], choices[i].equals("MD5") || choices[i].equals("SHA-256"));
+            panel.add(boxes[i]);
+        }
+
+        int option = JOptionPane.showConfirmDialog(null, panel, "Generate Checksum",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (option != JOptionPane.OK_OPTION) {
+            return null;
+        }
+
+        List<String> selected = new ArrayList<>();
+        for (JCheckBox box : boxes) {
+            if (box.isSelected()) {
+                selected.add(box.getText());
+            }
+        }
+        return selected.isEmpty() ? null : selected;
+    }
+
+    // Hashes the file once for all algorithms; see MultiDigest.
+    private static String[] calculateChecksums(Path file, String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        if (algorithms.length == 0) {
+            return new String[0]; // Only a Merkle checksum was asked for
+        }
+        byte[][] hashes = MultiDigest.digest(file, algorithms);
+        String[] checksums = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            checksums[i] = toHex(hashes[i]);
+        }
+        return checksums;
+    }
 
-        // Convert to hex string
+    private static String toHex(byte[] hash) {
         StringBuilder hexString = new StringBuilder();
         for (byte b : hash) {
             String hex = Integer.toHexString(0xff & b);
@@ -2,6 +2,8 @@ package bytecypher;
 
 import java.awt.Dimension;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -35,6 +37,21 @@ public class FileSelector {
         return (userSelection == JFileChooser.APPROVE_OPTION) ? fileChooser.getSelectedFile().getAbsolutePath() : null;
     }
 
+    // Lets the user pick several files at once; returns null if cancelled.
+    public static List<String> selectFiles() {
+        JFileChooser fileChooser = createFileChooser("Select Files", JFileChooser.FILES_ONLY, "Choose one or more files");
+        fileChooser.setMultiSelectionEnabled(true);
+        int userSelection = fileChooser.showOpenDialog(null);
+        if (userSelection != JFileChooser.APPROVE_OPTION) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        for (File file : fileChooser.getSelectedFiles()) {
+            paths.add(file.getAbsolutePath());
+        }
+        return paths;
+    }
+
     public static String selectFolder() {
         JFileChooser fileChooser = createFileChooser("Select a Folder", JFileChooser.DIRECTORIES_ONLY, "Choose a folder");
         int userSelection = fileChooser.showOpenDialog(null);
@@ -76,6 +93,13 @@ public class FileSelector {
         return null;
     }
 
+    public static String selectOutputFolder(String contents) {
+        JFileChooser fileChooser = createFileChooser("Select Output Location", JFileChooser.DIRECTORIES_ONLY,
+                "Choose where to save the " + contents);
+        int userSelection = fileChooser.showDialog(null, "Select Folder");
+        return (userSelection == JFileChooser.APPROVE_OPTION) ? fileChooser.getSelectedFile().getAbsolutePath() : null;
+    }
+
     public static String selectDecompressionSaveLocation() {
         JFileChooser fileChooser = createFileChooser("Select Extraction Location", JFileChooser.DIRECTORIES_ONLY,
                 "Choose where to extract files");
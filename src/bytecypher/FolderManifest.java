@@ -0,0 +1,232 @@
+package bytecypher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+// SHA-256 manifest of every file in a folder tree, written in sha256sum format
+// ("<hash>  <relative/path>", sorted by path) so it can also be checked with
+// `sha256sum -c` from the folder. Files are hashed on a bounded pool while the tree
+// is still being walked, so a large tree is limited by the disk rather than by one
+// hashing thread.
+public class FolderManifest {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    // Outcome of checking a folder against a manifest; paths are relative and sorted
+    static class Report {
+
+        int verified;
+        final List<String> mismatched = new ArrayList<>();
+        final List<String> missing = new ArrayList<>();
+        final List<String> extra = new ArrayList<>();
+        final List<String> unreadable = new ArrayList<>();
+
+        boolean intact() {
+            return mismatched.isEmpty() && missing.isEmpty() && extra.isEmpty() && unreadable.isEmpty();
+        }
+    }
+
+    // Hashes every regular file under root, except the manifest itself if it is saved
+    // inside the tree, and writes the manifest. Files that cannot be read are left out
+    // and returned.
+    static List<String> create(Path root, Path manifest) throws IOException {
+        Map<String, String> hashes = new ConcurrentHashMap<>();
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        hashTree(root, manifest, path -> true, hashes, new ArrayList<>(), failed);
+        write(new TreeMap<>(hashes), manifest);
+        Collections.sort(failed);
+        return failed;
+    }
+
+    // Checks root against a manifest. Only files listed in it are hashed; the rest of
+    // the tree is only walked to find files that are not listed.
+    static Report verify(Path root, Path manifest) throws IOException {
+        SortedMap<String, String> expected = read(manifest);
+        Map<String, String> hashes = new ConcurrentHashMap<>();
+        List<String> found = new ArrayList<>();
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+        hashTree(root, manifest, expected::containsKey, hashes, found, failed);
+
+        Report report = new Report();
+        report.unreadable.addAll(failed);
+        for (String path : found) {
+            if (!expected.containsKey(path)) {
+                report.extra.add(path);
+            }
+        }
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            String actual = hashes.get(entry.getKey());
+            if (actual == null) {
+                if (!failed.contains(entry.getKey())) {
+                    report.missing.add(entry.getKey());
+                }
+            } else if (actual.equalsIgnoreCase(entry.getValue())) {
+                report.verified++;
+            } else {
+                report.mismatched.add(entry.getKey());
+            }
+        }
+        Collections.sort(report.extra);
+        Collections.sort(report.unreadable);
+        return report;
+    }
+
+    // Walks root on the calling thread, adding every regular file's relative path to
+    // found, and hashes the wanted ones on a pool of worker threads with at most twice
+    // the worker count queued at once. Files that fail to hash go to failed.
+    private static void hashTree(Path root, Path exclude, Predicate<String> wanted, Map<String, String> hashes,
+            List<String> found, List<String> failed) throws IOException {
+        Path skip = exclude.toAbsolutePath().normalize();
+        int threads = CompressionSettings.getWorkerThreads();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<?>> pending = new ArrayDeque<>();
+        int maxPending = threads * 2;
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile() || file.toAbsolutePath().normalize().equals(skip)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String path = relativePath(root, file);
+                    found.add(path);
+                    if (!wanted.test(path)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    pending.addLast(workers.submit(() -> {
+                        try {
+                            hashes.put(path, sha256(file));
+                        } catch (IOException e) {
+                            System.out.println("Failed " + file + ": " + e.getMessage());
+                            failed.add(path);
+                        }
+                    }));
+                    if (pending.size() > maxPending) {
+                        await(pending.removeFirst());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.out.println("Failed " + file + ": " + e.getMessage());
+                    failed.add(relativePath(root, file));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            while (!pending.isEmpty()) {
+                await(pending.removeFirst());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // Path relative to root with '/' separators, as written in the manifest
+    private static String relativePath(Path root, Path file) {
+        return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try {
+            return HEX.formatHex(MultiDigest.digest(file, false, "SHA-256")[0]);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+    }
+
+    // Writes "<hash>  <path>" lines. As in sha256sum, a path containing a backslash or
+    // line break is escaped and its line starts with a backslash.
+    private static void write(SortedMap<String, String> hashes, Path manifest) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                String path = entry.getKey();
+                if (path.indexOf('\\') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+                    path = path.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+                    writer.write('\\');
+                }
+                writer.write(entry.getValue() + "  " + path);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static SortedMap<String, String> read(Path manifest) throws IOException {
+        SortedMap<String, String> hashes = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                boolean escaped = line.charAt(0) == '\\';
+                int separator = line.indexOf(' ');
+                // "<hash>  <path>", or "<hash> *<path>" for sha256sum's binary mode
+                if (separator != 64 + (escaped ? 1 : 0) || line.length() < separator + 3
+                        || (line.charAt(separator + 1) != ' ' && line.charAt(separator + 1) != '*')) {
+                    throw new IOException("Malformed manifest line " + number);
+                }
+                String path = line.substring(separator + 2);
+                if (escaped) {
+                    path = unescape(path);
+                }
+                hashes.put(path, line.substring(escaped ? 1 : 0, separator));
+            }
+        }
+        return hashes;
+    }
+
+    private static String unescape(String path) {
+        StringBuilder result = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                char next = path.charAt(++i);
+                result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    // Waits for a hashing task; the tasks report their own failures.
+    private static void await(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Folder hashing interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package bytecypher;
+
+import java.util.Arrays;
+
+// Compares the table-driven Huffman decoder with the previous approach of expanding
+// the payload into a '0'/'1' String and walking tree nodes one bit at a time.
+// Usage: java -Xmx4g bytecypher.HuffmanBenchmark [sizeInMB]   (default 100 MB of logs)
+public class HuffmanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        byte[] logs = BenchmarkCorpus.logs(sizeMb * 1024 * 1024);
+
+        HuffmanCompression huffman = new HuffmanCompression();
+        byte[] payload = huffman.compress(logs);
+        int[] lengths = huffman.getCodeLengths();
+        System.out.printf("Input %d MB, payload %.1f%% of input%n", sizeMb, payload.length * 100.0 / logs.length);
+
+        long start = System.nanoTime();
+        byte[] tableResult = new HuffmanCompression().decompress(payload, logs.length);
+        double tableSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        byte[] walkResult = treeWalkDecode(payload, lengths, logs.length);
+        double walkSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("table decoder:     %8.2f MB/s (%s)%n", sizeMb / tableSeconds,
+                Arrays.equals(tableResult, logs) ? "ok" : "MISMATCH");
+        System.out.printf("tree-walk decoder: %8.2f MB/s (%s)%n", sizeMb / walkSeconds,
+                Arrays.equals(walkResult, logs) ? "ok" : "MISMATCH");
+    }
+
+    private static class Node {
+
+        Node zero;
+        Node one;
+        int symbol = -1;
+    }
+
+    // The previous decoding strategy, applied to a canonical payload.
+    private static byte[] treeWalkDecode(byte[] payload, int[] lengths, int originalLength) {
+        Node root = new Node();
+        int[] codes = canonicalCodes(lengths);
+        for (int symbol = 0; symbol < 256; symbol++) {
+            Node node = root;
+            for (int bit = lengths[symbol] - 1; bit >= 0; bit--) {
+                if (((codes[symbol] >>> bit) & 1) == 0) {
+                    node = node.zero != null ? node.zero : (node.zero = new Node());
+                } else {
+                    node = node.one != null ? node.one : (node.one = new Node());
+                }
+            }
+            if (lengths[symbol] > 0) {
+                node.symbol = symbol;
+            }
+        }
+
+        int headerSize = 8 + 128;
+        StringBuilder bits = new StringBuilder((payload.length - headerSize) * 8);
+        for (int i = headerSize; i < payload.length; i++) {
+            for (int j = 7; j >= 0; j--) {
+                bits.append((payload[i] >> j) & 1);
+            }
+        }
+        String binaryString = bits.toString();
+
+        byte[] output = new byte[originalLength];
+        int outPos = 0;
+        Node current = root;
+        for (int i = 0; i < binaryString.length() && outPos < originalLength; i++) {
+            current = binaryString.charAt(i) == '0' ? current.zero : current.one;
+            if (current.symbol >= 0) {
+                output[outPos++] = (byte) current.symbol;
+                current = root;
+            }
+        }
+        return output;
+    }
+
+    private static int[] canonicalCodes(int[] lengths) {
+        int[] codes = new int[256];
+        int code = 0;
+        for (int length = 1; length <= 15; length++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (lengths[symbol] == length) {
+                    codes[symbol] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+}
@@ -1,6 +1,7 @@
 package bytecypher;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class HuffmanCompression implements Serializable {
@@ -27,97 +28,226 @@ public class HuffmanCompression implements Serializable {
         }
     }
 
-    private transient Map<Character, String> huffmanCodes; // Not serialized because it can be rebuilt.
-    private Node root;  // The Huffman tree
+    // Payload type in the first int. Type 0 is the older tree-coded payload, which needs the serialized tree.
+    private static final int FORMAT_LEGACY_SINGLE = 1; // Legacy payload for a single repeated character
+    private static final int FORMAT_CANONICAL = 2;     // Code lengths in the header, no tree needed
+    private static final int SYMBOLS = 256;
+    private static final int MAX_CODE_LENGTH = 15;     // Lengths are stored as 4-bit nibbles
+    private static final int HEADER_SIZE = 8 + SYMBOLS / 2; // Type, original length, code-length table
+
+    private Node root;  // The Huffman tree (only used for archives written before canonical codes)
     private int originalLength; // Store the original length for accurate decompression
+    private transient int[] codeLengths; // Code length per byte value, 0 for unused bytes
 
-    // Compress the data and build the Huffman tree.
-    public byte[] compress(byte[] data) {
-        if (data.length == 0) {
-            return new byte[0]; // Handle empty input
+    // The code model for one input: its byte frequencies, the code lengths derived
+    // from them and the exact payload size they will produce. Building it costs one
+    // counting pass, so callers can compare the size against other codecs before
+    // spending time on encoding.
+    public static class Model {
+
+        private final int[] codeLengths;
+        private final long encodedSize;
+
+        private Model(int[] codeLengths, long encodedSize) {
+            this.codeLengths = codeLengths;
+            this.encodedSize = encodedSize;
         }
 
-        originalLength = data.length;
-        String text = new String(data);
-        Map<Character, Integer> frequencyMap = new HashMap<>();
+        public int[] getCodeLengths() {
+            return codeLengths;
+        }
 
-        // Build frequency map.
-        for (char c : text.toCharArray()) {
-            frequencyMap.put(c, frequencyMap.getOrDefault(c, 0) + 1);
+        // Size in bytes of the payload compress(data, model) returns.
+        public long getEncodedSize() {
+            return encodedSize;
         }
+    }
 
-        // Handle single character case
-        if (frequencyMap.size() == 1) {
-            char singleChar = frequencyMap.keySet().iterator().next();
+    public static Model buildModel(byte[] data) {
+        return buildModel(ByteBuffer.wrap(data));
+    }
 
-            // Create a special tree for single character
-            root = new Node(singleChar, frequencyMap.get(singleChar), null, null);
-            huffmanCodes = new HashMap<>();
-            huffmanCodes.put(singleChar, "0"); // Use "0" as the code
+    // Builds the model for the bytes between the buffer's position and limit.
+    public static Model buildModel(ByteBuffer data) {
+        int start = data.position();
+        int end = data.limit();
+        if (start == end) {
+            return new Model(new int[SYMBOLS], 0);
+        }
 
-            // For a single repeated character, just return a small representation
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            try {
-                dos.writeInt(1); // Signal that this is a single character compression
-                dos.writeChar(singleChar);
-                dos.writeInt(originalLength); // How many times to repeat it
-                dos.close();
-                return baos.toByteArray();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return data; // Return original data if compression fails
-            }
+        // Build frequency table.
+        int[] frequencies = new int[SYMBOLS];
+        for (int i = start; i < end; i++) {
+            frequencies[data.get(i) & 0xFF]++;
         }
 
-        // Build the priority queue.
-        PriorityQueue<Node> pq = new PriorityQueue<>();
-        for (Map.Entry<Character, Integer> entry : frequencyMap.entrySet()) {
-            pq.offer(new Node(entry.getKey(), entry.getValue(), null, null));
+        int[] lengths = buildCodeLengths(frequencies);
+        long totalBits = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            totalBits += (long) frequencies[i] * lengths[i];
         }
+        return new Model(lengths, HEADER_SIZE + (totalBits + 7) / 8);
+    }
+
+    // Compress the data with a canonical Huffman code. The output carries only the
+    // code lengths, from which the decoder rebuilds the same codes.
+    public byte[] compress(byte[] data) {
+        return compress(data, buildModel(data));
+    }
+
+    // Encode with a model already built for this data by buildModel.
+    public byte[] compress(byte[] data, Model model) {
+        return compress(ByteBuffer.wrap(data), model);
+    }
 
-        // Build the Huffman tree.
-        while (pq.size() > 1) {
-            Node left = pq.poll();
-            Node right = pq.poll();
-            pq.offer(new Node('\0', left.freq + right.freq, left, right));
+    // Encodes the bytes between the buffer's position and limit, reading them in
+    // place so a memory-mapped file is not copied to the heap first.
+    public byte[] compress(ByteBuffer data, Model model) {
+        int start = data.position();
+        int end = data.limit();
+        if (start == end) {
+            return new byte[0]; // Handle empty input
         }
 
-        root = pq.poll();
-        huffmanCodes = new HashMap<>();
-        buildHuffmanCodes(root, "");
+        originalLength = end - start;
+        root = null;
+        codeLengths = model.codeLengths;
+        int[] codes = buildCanonicalCodes(codeLengths);
+
+        int headerSize = HEADER_SIZE;
+        long outputSize = model.encodedSize;
+        if (outputSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Input too large for a single Huffman payload");
+        }
+
+        byte[] output = new byte[(int) outputSize];
+        writeInt(output, 0, FORMAT_CANONICAL);
+        writeInt(output, 4, originalLength);
+        for (int i = 0; i < SYMBOLS; i += 2) {
+            output[8 + i / 2] = (byte) ((codeLengths[i] << 4) | codeLengths[i + 1]);
+        }
 
-        // Encode the text using the generated codes.
-        StringBuilder encodedString = new StringBuilder();
-        for (char c : text.toCharArray()) {
-            encodedString.append(huffmanCodes.get(c));
+        // Encode through a 64-bit accumulator, flushing whole bytes MSB first.
+        long bitBuffer = 0;
+        int bitCount = 0;
+        int outPos = headerSize;
+        for (int i = start; i < end; i++) {
+            int symbol = data.get(i) & 0xFF;
+            bitBuffer = (bitBuffer << codeLengths[symbol]) | codes[symbol];
+            bitCount += codeLengths[symbol];
+            if (bitCount >= 32) {
+                bitCount -= 32;
+                int word = (int) (bitBuffer >>> bitCount);
+                output[outPos++] = (byte) (word >>> 24);
+                output[outPos++] = (byte) (word >>> 16);
+                output[outPos++] = (byte) (word >>> 8);
+                output[outPos++] = (byte) word;
+            }
+        }
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            output[outPos++] = (byte) (bitBuffer >>> bitCount);
+        }
+        if (bitCount > 0) {
+            output[outPos++] = (byte) (bitBuffer << (8 - bitCount)); // Pad the last byte with zeros
         }
 
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
+        return output;
+    }
 
-            // Regular huffman compression
-            dos.writeInt(0); // Signal that this is a regular compression
+    // Compute code lengths with a Huffman tree over the used byte values. If the
+    // tree is deeper than MAX_CODE_LENGTH, the frequencies are flattened and the
+    // tree rebuilt until it fits.
+    private static int[] buildCodeLengths(int[] frequencies) {
+        int[] lengths = new int[SYMBOLS];
+        int used = 0;
+        int lastSymbol = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            if (frequencies[i] > 0) {
+                used++;
+                lastSymbol = i;
+            }
+        }
+        if (used == 1) {
+            lengths[lastSymbol] = 1; // A lone symbol still needs a one-bit code
+            return lengths;
+        }
 
-            // Store the necessary info for proper decompression
-            dos.writeInt(originalLength); // Original data length in bytes
+        int[] weights = frequencies.clone();
+        while (true) {
+            // Tree nodes: 0..255 are leaves, internal nodes are appended after them.
+            long[] nodeWeight = new long[SYMBOLS * 2];
+            int[] parent = new int[SYMBOLS * 2];
+            PriorityQueue<Integer> pq = new PriorityQueue<>((x, y) -> Long.compare(nodeWeight[x], nodeWeight[y]));
+            for (int i = 0; i < SYMBOLS; i++) {
+                if (weights[i] > 0) {
+                    nodeWeight[i] = weights[i];
+                    pq.offer(i);
+                }
+            }
 
-            byte[] bitStream = toByteArray(encodedString.toString());
-            dos.writeInt(encodedString.length()); // Bit length for proper padding handling
-            dos.writeInt(bitStream.length); // Byte array length
-            dos.write(bitStream);
-            dos.close();
+            int next = SYMBOLS;
+            while (pq.size() > 1) {
+                int left = pq.poll();
+                int right = pq.poll();
+                nodeWeight[next] = nodeWeight[left] + nodeWeight[right];
+                parent[left] = next;
+                parent[right] = next;
+                pq.offer(next++);
+            }
+            int treeRoot = pq.poll();
+
+            int maxLength = 0;
+            for (int i = 0; i < SYMBOLS; i++) {
+                if (weights[i] > 0) {
+                    int depth = 0;
+                    for (int node = i; node != treeRoot; node = parent[node]) {
+                        depth++;
+                    }
+                    lengths[i] = depth;
+                    maxLength = Math.max(maxLength, depth);
+                }
+            }
 
-            return baos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return data; // Return original data if compression fails
+            if (maxLength <= MAX_CODE_LENGTH) {
+                return lengths;
+            }
+            for (int i = 0; i < SYMBOLS; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = Math.max(1, weights[i] >>> 1);
+                }
+            }
         }
     }
 
-    // Decompress the data using the stored Huffman tree.
-    public byte[] decompress(byte[] data) throws IOException {
+    // Assign canonical codes: shorter codes first, then by byte value within a length.
+    private static int[] buildCanonicalCodes(int[] lengths) {
+        int[] lengthCount = new int[MAX_CODE_LENGTH + 1];
+        for (int length : lengths) {
+            if (length > 0) {
+                lengthCount[length]++;
+            }
+        }
+
+        int[] nextCode = new int[MAX_CODE_LENGTH + 2];
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+
+        int[] codes = new int[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            if (lengths[i] > 0) {
+                codes[i] = nextCode[lengths[i]]++;
+            }
+        }
+        return codes;
+    }
+
+    // Decompress the data using the stored Huffman tree. originalSize is the size the
+    // container recorded for the data; no payload may claim to decode to more.
+    public byte[] decompress(byte[] data, long originalSize) throws IOException {
         if (data.length == 0) {
             return new byte[0]; // Handle empty input
         }
@@ -125,10 +255,17 @@ public class HuffmanCompression implements Serializable {
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
         int compressionType = dis.readInt();
 
-        if (compressionType == 1) {
+        if (compressionType == FORMAT_CANONICAL) {
+            return decompressCanonical(data, originalSize);
+        }
+
+        if (compressionType == FORMAT_LEGACY_SINGLE) {
             // This is a single character compression
             char singleChar = dis.readChar();
             int repeatCount = dis.readInt();
+            if (repeatCount < 0 || repeatCount > originalSize) {
+                throw new IOException("Corrupt Huffman header: invalid repeat count " + repeatCount);
+            }
 
             StringBuilder decodedText = new StringBuilder(repeatCount);
             for (int i = 0; i < repeatCount; i++) {
@@ -137,102 +274,271 @@ public class HuffmanCompression implements Serializable {
             return decodedText.toString().getBytes();
         }
 
-        // Regular huffman compression
+        // Regular huffman compression from older archives
         originalLength = dis.readInt();
         int bitLength = dis.readInt();
         int byteArrayLength = dis.readInt();
+        if (originalLength < 0 || originalLength > originalSize || bitLength < 0 || byteArrayLength < 0
+                || byteArrayLength > data.length || bitLength > (long) byteArrayLength * 8) {
+            throw new IOException("Corrupt Huffman header");
+        }
 
         byte[] compressedBytes = new byte[byteArrayLength];
         dis.readFully(compressedBytes);
 
-        String binaryString = toBinaryString(compressedBytes, bitLength);
-
         if (root == null) {
             throw new IOException("Huffman tree not initialized. Cannot decompress.");
         }
 
-        StringBuilder decodedText = new StringBuilder(originalLength);
-        Node current = root;
-
         // Special case for single node tree
         if (root.left == null && root.right == null) {
-            for (int i = 0; i < originalLength; i++) {
-                decodedText.append(root.ch);
-            }
-            return decodedText.toString().getBytes();
+            char[] repeated = new char[originalLength];
+            Arrays.fill(repeated, root.ch);
+            return new String(repeated).getBytes();
         }
 
-        // Decode bit by bit.
-        for (int i = 0; i < binaryString.length(); i++) {
-            char bit = binaryString.charAt(i);
-            current = (bit == '0') ? current.left : current.right;
+        Decoder decoder = new Decoder();
+        decoder.addTree(root, 0);
+        decoder.buildTable();
+
+        // Older archives coded chars, not bytes, so decode them and re-encode the text. The
+        // stored length counts bytes, which can exceed the number of chars, so stop at bitLength.
+        // Every char takes at least one bit, so bitLength also bounds the buffer.
+        int maxChars = Math.min(originalLength, bitLength);
+        char[] decodedText = new char[maxChars];
+        int decoded = decoder.decode(compressedBytes, 0, compressedBytes.length, bitLength, maxChars, null, decodedText);
+        return new String(decodedText, 0, decoded).getBytes();
+    }
 
-            if (current.left == null && current.right == null) {
-                decodedText.append(current.ch);
-                current = root;
+    private byte[] decompressCanonical(byte[] data, long originalSize) throws IOException {
+        int headerSize = HEADER_SIZE;
+        if (data.length < headerSize) {
+            throw new IOException("Truncated Huffman header");
+        }
+        originalLength = readInt(data, 4);
+        codeLengths = readCodeLengths(data, 8);
+
+        // Every symbol takes at least the shortest code, which bounds how many the
+        // payload can hold; a corrupt length must not size the output buffer
+        int minLength = Integer.MAX_VALUE;
+        for (int length : codeLengths) {
+            if (length > 0) {
+                minLength = Math.min(minLength, length);
+            }
+        }
+        long payloadBits = (long) (data.length - headerSize) * 8;
+        if (originalLength < 0 || originalLength > originalSize || (originalLength > 0
+                && (minLength == Integer.MAX_VALUE || (long) originalLength * minLength > payloadBits))) {
+            throw new IOException("Corrupt Huffman header: invalid original length " + originalLength);
+        }
 
-                // Break early if we've reached the original length
-                if (decodedText.length() >= originalLength) {
-                    break;
-                }
+        int[] codes = buildCanonicalCodes(codeLengths);
+        Decoder decoder = new Decoder();
+        for (int i = 0; i < SYMBOLS; i++) {
+            if (codeLengths[i] > 0) {
+                decoder.addCode(i, codes[i], codeLengths[i]);
             }
         }
+        decoder.buildTable();
 
-        return decodedText.toString().getBytes();
+        byte[] output = new byte[originalLength];
+        int decoded = decoder.decode(data, headerSize, data.length, payloadBits, originalLength, output, null);
+        if (decoded < originalLength) {
+            throw new IOException("Huffman data ends before the expected size");
+        }
+        return output;
     }
 
-    // Recursively build the Huffman codes.
-    private void buildHuffmanCodes(Node node, String code) {
-        if (node == null) {
-            return;
+    // Table-driven decoder. The code tree is kept in two int arrays; a child
+    // pointer is either an internal node index, ~symbol for a leaf, or INVALID.
+    // A 2^TABLE_BITS table resolves every code of up to TABLE_BITS bits with a
+    // single lookup; longer codes continue bit by bit from the node the table
+    // entry points to.
+    private static class Decoder {
+
+        private static final int TABLE_BITS = 11;
+        private static final int INVALID = Integer.MIN_VALUE;
+
+        private int[] zero = new int[64];
+        private int[] one = new int[64];
+        private int nodeCount = 1;
+        // Entry >= 0: (symbol << 5) | code length. Entry < 0: ~node to continue from.
+        private final int[] table = new int[1 << TABLE_BITS];
+
+        Decoder() {
+            zero[0] = INVALID;
+            one[0] = INVALID;
         }
-        if (node.left == null && node.right == null) {
-            huffmanCodes.put(node.ch, code.isEmpty() ? "0" : code);
+
+        private int newNode() {
+            if (nodeCount == zero.length) {
+                zero = Arrays.copyOf(zero, nodeCount * 2);
+                one = Arrays.copyOf(one, nodeCount * 2);
+            }
+            zero[nodeCount] = INVALID;
+            one[nodeCount] = INVALID;
+            return nodeCount++;
         }
-        buildHuffmanCodes(node.left, code + "0");
-        buildHuffmanCodes(node.right, code + "1");
-    }
 
-    // Convert a binary string into a byte array.
-    private byte[] toByteArray(String binaryString) {
-        int byteCount = (binaryString.length() + 7) / 8;
-        byte[] byteArray = new byte[byteCount];
+        void addCode(int symbol, int code, int length) {
+            int node = 0;
+            for (int bit = length - 1; bit >= 0; bit--) {
+                int[] children = ((code >>> bit) & 1) == 0 ? zero : one;
+                if (bit == 0) {
+                    children[node] = ~symbol;
+                } else {
+                    if (children[node] == INVALID) {
+                        int child = newNode();
+                        children = ((code >>> bit) & 1) == 0 ? zero : one; // Arrays may have grown
+                        children[node] = child;
+                    }
+                    node = children[node];
+                }
+            }
+        }
 
-        for (int i = 0; i < binaryString.length(); i++) {
-            if (binaryString.charAt(i) == '1') {
-                byteArray[i / 8] |= (128 >> (i % 8));
+        // Mirror a legacy Node tree into the arrays, starting from the given node.
+        void addTree(Node node, int index) {
+            if (node.left == null && node.right == null) {
+                return;
+            }
+            int left = childFor(node.left);
+            zero[index] = left;
+            int right = childFor(node.right);
+            one[index] = right;
+            if (left >= 0) {
+                addTree(node.left, left);
+            }
+            if (right >= 0) {
+                addTree(node.right, right);
             }
         }
 
-        return byteArray;
-    }
+        private int childFor(Node child) {
+            if (child == null) {
+                return INVALID;
+            }
+            if (child.left == null && child.right == null) {
+                return ~child.ch;
+            }
+            return newNode();
+        }
 
-    // Convert a byte array to a binary string.
-    private String toBinaryString(byte[] byteArray, int bitLength) {
-        StringBuilder binaryString = new StringBuilder();
+        void buildTable() {
+            for (int prefix = 0; prefix < table.length; prefix++) {
+                int node = 0;
+                int entry = ~0;
+                for (int bit = TABLE_BITS - 1; bit >= 0; bit--) {
+                    int child = ((prefix >>> bit) & 1) == 0 ? zero[node] : one[node];
+                    if (child == INVALID) {
+                        entry = INVALID;
+                        break;
+                    }
+                    if (child < 0) {
+                        entry = (~child << 5) | (TABLE_BITS - bit);
+                        break;
+                    }
+                    node = child;
+                    entry = ~node;
+                }
+                table[prefix] = entry;
+            }
+        }
 
-        for (int i = 0; i < byteArray.length; i++) {
-            byte b = byteArray[i];
+        // Decode up to count symbols from the first bitLimit bits of data[start, end) into
+        // byteOut or charOut, and return how many were decoded.
+        int decode(byte[] data, int start, int end, long bitLimit, int count, byte[] byteOut, char[] charOut) throws IOException {
+            long bitBuffer = 0;
+            int bitCount = 0;
+            int position = start;
+            int mask = (1 << TABLE_BITS) - 1;
+
+            int outPos = 0;
+            for (; outPos < count; outPos++) {
+                if ((long) (position - start) * 8 - bitCount >= bitLimit) {
+                    break; // Every coded bit has been consumed
+                }
+                if (bitCount < 32) {
+                    // Refill up to 56 bits; past the end, zero bits are shifted in and checked below
+                    while (bitCount <= 56) {
+                        bitBuffer = (bitBuffer << 8) | (position < end ? data[position] & 0xFF : 0);
+                        position++;
+                        bitCount += 8;
+                    }
+                }
 
-            for (int j = 7; j >= 0; j--) {
-                binaryString.append((b >> j) & 1);
+                int entry = table[(int) (bitBuffer >>> (bitCount - TABLE_BITS)) & mask];
+                int symbol;
+                if (entry >= 0) {
+                    symbol = entry >>> 5;
+                    bitCount -= entry & 31;
+                } else if (entry != INVALID) {
+                    // Overflow: walk the rest of a long code one bit at a time
+                    bitCount -= TABLE_BITS;
+                    int node = ~entry;
+                    while (true) {
+                        if (bitCount == 0) {
+                            bitBuffer = (position < end ? data[position] & 0xFF : 0);
+                            position++;
+                            bitCount = 8;
+                        }
+                        bitCount--;
+                        node = ((bitBuffer >>> bitCount) & 1) == 0 ? zero[node] : one[node];
+                        if (node == INVALID) {
+                            throw new IOException("Invalid Huffman code in data");
+                        }
+                        if (node < 0) {
+                            symbol = ~node;
+                            break;
+                        }
+                    }
+                } else {
+                    throw new IOException("Invalid Huffman code in data");
+                }
 
-                // Stop if we've reached the actual bit length
-                if (binaryString.length() >= bitLength) {
-                    break;
+                if (byteOut != null) {
+                    byteOut[outPos] = (byte) symbol;
+                } else {
+                    charOut[outPos] = (char) symbol;
                 }
             }
 
-            // Stop if we've reached the actual bit length
-            if (binaryString.length() >= bitLength) {
-                break;
+            long consumedBits = (long) (position - start) * 8 - bitCount;
+            if (consumedBits > bitLimit) {
+                throw new IOException("Huffman data ends before the expected size");
             }
+            return outPos;
+        }
+    }
+
+    private static int[] readCodeLengths(byte[] data, int position) {
+        int[] lengths = new int[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i += 2) {
+            int packed = data[position + i / 2] & 0xFF;
+            lengths[i] = packed >>> 4;
+            lengths[i + 1] = packed & 0x0F;
         }
+        return lengths;
+    }
+
+    private static void writeInt(byte[] buffer, int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+    }
 
-        return binaryString.toString();
+    // Code length per byte value from the last compress or decompress call.
+    public int[] getCodeLengths() {
+        return codeLengths;
     }
 
-    // Getter for the Huffman tree.
+    // Getter for the Huffman tree (null for canonical payloads).
     public Node getTree() {
         return root;
     }
@@ -0,0 +1,135 @@
+package bytecypher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Derives file keys from one password for the length of an operation, so a batch of
+// files pays for PBKDF2 once instead of once per file.
+//
+// Files written in a session share its master salt. Their key is HKDF-SHA256 over
+// PBKDF2(password, master salt) with a random salt of their own, so every file still
+// gets a unique key and a password guess still costs a full PBKDF2 run. PBKDF2
+// results are cached by salt; the cache is bounded, and keys are zeroed when they are
+// evicted and when the session is closed.
+public class KeySession implements AutoCloseable {
+
+    // Key derivation ids stored in the file header
+    static final int KDF_PBKDF2 = 0;      // key = PBKDF2(password, salt), files before batch support
+    static final int KDF_PBKDF2_HKDF = 1; // key = HKDF(PBKDF2(password, master salt), file salt)
+
+    static final int SALT_LENGTH = 16;
+    private static final int ITERATIONS = 65536;
+    private static final int KEY_SIZE = 256;
+    private static final int CACHE_SIZE = 16;
+    private static final byte[] HKDF_INFO = "bytecypher file key".getBytes(StandardCharsets.US_ASCII);
+
+    private final char[] password;
+    private final byte[] masterSalt = new byte[SALT_LENGTH];
+    private final SecureRandom random = new SecureRandom();
+    private boolean closed;
+
+    // PBKDF2 output by salt, least recently used first
+    private final Map<ByteBuffer, byte[]> masterKeys = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+            if (size() > CACHE_SIZE) {
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // Takes a copy of the password, so the caller can clear its own right away.
+    public KeySession(char[] password) {
+        this.password = password.clone();
+        random.nextBytes(masterSalt);
+    }
+
+    // Master salt for files written in this session
+    byte[] masterSalt() {
+        return masterSalt.clone();
+    }
+
+    // Fresh per-file salt for the HKDF step
+    byte[] newFileSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    // Key for a file with the given derivation id and salts (fileSalt is unused for
+    // KDF_PBKDF2).
+    SecretKey fileKey(int kdf, byte[] salt, byte[] fileSalt) throws GeneralSecurityException {
+        if (kdf != KDF_PBKDF2 && kdf != KDF_PBKDF2_HKDF) {
+            throw new GeneralSecurityException("Unknown key derivation " + kdf);
+        }
+        byte[] master = masterKey(salt);
+        byte[] key = kdf == KDF_PBKDF2 ? master : hkdf(master, fileSalt, HKDF_INFO);
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(master, (byte) 0);
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Copy of the PBKDF2 output for salt, derived on first use. Synchronized so
+    // parallel workers that need the same salt derive it only once.
+    private synchronized byte[] masterKey(byte[] salt) throws GeneralSecurityException {
+        if (closed) {
+            throw new IllegalStateException("Key session is closed");
+        }
+        ByteBuffer id = ByteBuffer.wrap(salt.clone());
+        byte[] key = masterKeys.get(id);
+        if (key == null) {
+            key = pbkdf2(password, salt);
+            masterKeys.put(id, key);
+        }
+        return key.clone();
+    }
+
+    private static byte[] pbkdf2(char[] password, byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_SIZE);
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // HKDF-SHA256 (RFC 5869) for a single 32-byte output block
+    static byte[] hkdf(byte[] inputKey, byte[] salt, byte[] info) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        mac.update(info);
+        mac.update((byte) 1);
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+        return mac.doFinal();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        Arrays.fill(password, '\0');
+        for (Iterator<byte[]> keys = masterKeys.values().iterator(); keys.hasNext();) {
+            Arrays.fill(keys.next(), (byte) 0);
+            keys.remove();
+        }
+    }
+}
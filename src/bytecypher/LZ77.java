@@ -1,6 +1,9 @@
 package bytecypher;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class LZ77 {
 
@@ -8,27 +11,44 @@ public class LZ77 {
     private static final int MIN_MATCH_LENGTH = 3;
     private static final int MAX_MATCH_LENGTH = 258; // Standard maximum match length
 
+    private static final int HASH_BITS = 15;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int DEFAULT_MAX_CHAIN = 64; // How many earlier positions to try per match search
+
+    // The "lz77v2" format has no fixed-width fields, so it can afford a larger window and longer matches
+    private static final int V2_WINDOW_SIZE = 32768;
+    private static final int V2_MAX_MATCH_LENGTH = 1024;
+
     public static byte[] compress(byte[] data) {
-        ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+        return compress(data, DEFAULT_MAX_CHAIN);
+    }
+
+    // Compress with a custom chain-depth limit. Higher values find longer matches
+    // on repetitive data at the cost of speed.
+    public static byte[] compress(byte[] data, int maxChainLength) {
+        ByteArrayOutputStream compressedData = new ByteArrayOutputStream(data.length / 2 + 16);
         int dataLength = data.length;
         int position = 0;
+        MatchFinder finder = new MatchFinder(ByteBuffer.wrap(data), WINDOW_SIZE, MAX_MATCH_LENGTH, maxChainLength, false);
 
         // Format: 2 bytes for offset, 2 bytes for length, followed by next byte
         // If offset is 0, this means literal byte
         while (position < dataLength) {
             // Find the longest match in the sliding window
-            Match match = findLongestMatch(data, position, dataLength);
+            int matchLength = finder.findLongestMatch(position);
 
-            if (match.length >= MIN_MATCH_LENGTH) {
+            if (matchLength >= MIN_MATCH_LENGTH) {
                 // Write offset and length (2 bytes each for larger values)
-                writeShort(compressedData, match.offset);
-                writeShort(compressedData, match.length);
+                writeShort(compressedData, finder.matchOffset);
+                writeShort(compressedData, matchLength);
 
-                // Move forward by match length
-                position += match.length;
+                // Move forward by match length, indexing every position we skip
+                finder.insertRange(position, position + matchLength);
+                position += matchLength;
 
                 // Write next byte if not at the end
                 if (position < dataLength) {
+                    finder.insert(position);
                     compressedData.write(data[position++]);
                 } else {
                     compressedData.write(0); // End marker
@@ -37,6 +57,7 @@ public class LZ77 {
                 // Write literal byte
                 writeShort(compressedData, 0); // 0 offset means literal
                 writeShort(compressedData, 1); // Length 1
+                finder.insert(position);
                 compressedData.write(data[position++]);
             }
         }
@@ -44,51 +65,203 @@ public class LZ77 {
         return compressedData.toByteArray();
     }
 
-    public static byte[] decompress(byte[] data) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+    // Decode into a buffer sized from the original length stored in the entry header,
+    // so each back-reference is a copy within one array instead of a snapshot of
+    // everything decoded so far.
+    public static byte[] decompress(byte[] data, int originalSize) throws IOException {
+        byte[] output = new byte[originalSize];
+        int outPos = 0;
         int dataLength = data.length;
         int position = 0;
 
-        while (position < dataLength - 4) { // Need at least 4 bytes for offset+length
+        while (outPos < originalSize && position + 5 <= dataLength) { // Each token is 5 bytes
             int offset = readShort(data, position);
             position += 2;
 
             int length = readShort(data, position);
             position += 2;
 
-            // Make sure we don't read past the end
-            if (position >= dataLength) {
-                break;
+            byte nextByte = data[position++];
+
+            if (offset != 0) {
+                // This is a back-reference
+                if (offset > outPos || length > originalSize - outPos) {
+                    throw new IOException("Corrupt LZ77 back-reference at output position " + outPos);
+                }
+                outPos = copyMatch(output, outPos, offset, length);
             }
 
-            byte nextByte = data[position++];
+            // The byte after a match that ends the file is only an end marker
+            if (outPos < originalSize) {
+                output[outPos++] = nextByte;
+            }
+        }
 
-            if (offset == 0) {
-                // This is a literal byte
-                output.write(nextByte);
+        if (outPos < originalSize) {
+            throw new IOException("LZ77 data ends before the expected size");
+        }
+        return output;
+    }
+
+    // "lz77v2" format: tokens are grouped in eights behind a flag byte whose bits
+    // (lowest first) mark each token as a literal (0) or a match (1). A literal is
+    // the raw byte; a match is varint(length - 3) followed by varint(offset - 1).
+    public static byte[] compressV2(byte[] data) {
+        return compressV2(ByteBuffer.wrap(data), DEFAULT_MAX_CHAIN, null);
+    }
+
+    public static byte[] compressV2(byte[] data, int maxChainLength) {
+        return compressV2(ByteBuffer.wrap(data), maxChainLength, null);
+    }
+
+    // Compresses the bytes between the buffer's position and limit, without moving
+    // them onto the heap first, so a memory-mapped file is read in place.
+    public static byte[] compressV2(ByteBuffer data) {
+        return compressV2(data.slice(), DEFAULT_MAX_CHAIN, null);
+    }
+
+    // Trial compression: returns null as soon as the output is over the budget.
+    static byte[] compressV2(ByteBuffer data, TrialBudget budget) {
+        return compressV2(data.slice(), DEFAULT_MAX_CHAIN, budget);
+    }
+
+    // data starts at index 0 and ends at its limit.
+    private static byte[] compressV2(ByteBuffer data, int maxChainLength, TrialBudget budget) {
+        int dataLength = data.limit();
+        ByteArrayOutputStream compressedData = new ByteArrayOutputStream(dataLength / 2 + 16);
+        int position = 0;
+        MatchFinder finder = new MatchFinder(data, V2_WINDOW_SIZE, V2_MAX_MATCH_LENGTH, maxChainLength, true);
+
+        // Tokens of the current group are collected here until its flag byte is known
+        byte[] group = new byte[8 * 6];
+        int groupSize = 0;
+        int flags = 0;
+        int tokens = 0;
+
+        while (position < dataLength) {
+            int matchLength = finder.findLongestMatch(position);
+
+            if (matchLength >= MIN_MATCH_LENGTH) {
+                flags |= 1 << tokens;
+                groupSize = writeVarInt(group, groupSize, matchLength - MIN_MATCH_LENGTH);
+                groupSize = writeVarInt(group, groupSize, finder.matchOffset - 1);
+                finder.insertRange(position, position + matchLength);
+                position += matchLength;
             } else {
-                // This is a back-reference
-                int start = output.size() - offset;
+                group[groupSize++] = data.get(position);
+                finder.insert(position);
+                position++;
+            }
 
-                if (start < 0) {
-                    // Invalid reference, skip
-                    continue;
+            if (++tokens == 8) {
+                compressedData.write(flags);
+                compressedData.write(group, 0, groupSize);
+                groupSize = 0;
+                flags = 0;
+                tokens = 0;
+
+                if (budget != null && budget.exceeded(position, compressedData.size())) {
+                    CompressionStats.recordAbort(BlockCompression.METHOD_LZ77, position);
+                    return null;
                 }
+            }
+        }
+
+        if (tokens > 0) {
+            compressedData.write(flags);
+            compressedData.write(group, 0, groupSize);
+        }
+        if (budget != null && budget.exceeded(dataLength, compressedData.size())) {
+            CompressionStats.recordAbort(BlockCompression.METHOD_LZ77, dataLength);
+            return null;
+        }
+
+        return compressedData.toByteArray();
+    }
+
+    public static byte[] decompressV2(byte[] data, int originalSize) throws IOException {
+        byte[] output = new byte[originalSize];
+        int outPos = 0;
+        int position = 0;
+
+        while (outPos < originalSize) {
+            if (position >= data.length) {
+                throw new IOException("LZ77 data ends before the expected size");
+            }
+            int flags = data[position++] & 0xFF;
 
-                byte[] buffer = output.toByteArray();
-                for (int i = 0; i < length; i++) {
-                    // Handle overlapping matches by reading from output as we go
-                    if (start + i < buffer.length) {
-                        output.write(buffer[start + i]);
+            for (int token = 0; token < 8 && outPos < originalSize; token++) {
+                if ((flags & (1 << token)) == 0) {
+                    if (position >= data.length) {
+                        throw new IOException("LZ77 data ends before the expected size");
                     }
+                    output[outPos++] = data[position++];
+                    continue;
+                }
+
+                long lengthCode = readVarInt(data, position);
+                position = (int) (lengthCode >>> 32);
+                long offsetCode = readVarInt(data, position);
+                position = (int) (offsetCode >>> 32);
+
+                // Range-check the raw codes first: a 5-byte varint can wrap to a zero offset or a
+                // negative length once converted to int
+                long lengthValue = lengthCode & 0xFFFFFFFFL;
+                long offsetValue = offsetCode & 0xFFFFFFFFL;
+                if (lengthValue > V2_MAX_MATCH_LENGTH - MIN_MATCH_LENGTH || offsetValue >= V2_WINDOW_SIZE) {
+                    throw new IOException("Corrupt LZ77 back-reference at output position " + outPos);
+                }
+
+                int length = (int) lengthValue + MIN_MATCH_LENGTH;
+                int offset = (int) offsetValue + 1;
+                if (offset > outPos || length > originalSize - outPos) {
+                    throw new IOException("Corrupt LZ77 back-reference at output position " + outPos);
                 }
 
-                // Write the next byte
-                output.write(nextByte);
+                outPos = copyMatch(output, outPos, offset, length);
             }
         }
 
-        return output.toByteArray();
+        return output;
+    }
+
+    // Copies a back-reference in place and returns the new output position.
+    private static int copyMatch(byte[] output, int outPos, int offset, int length) {
+        int from = outPos - offset;
+        if (offset >= length) {
+            System.arraycopy(output, from, output, outPos, length);
+            return outPos + length;
+        }
+        // Overlapping reference: copy byte by byte so it repeats the bytes just written
+        for (int i = 0; i < length; i++) {
+            output[outPos++] = output[from + i];
+        }
+        return outPos;
+    }
+
+    private static int writeVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    // Returns the decoded value in the low 32 bits and the position after it in the high 32 bits.
+    private static long readVarInt(byte[] data, int position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position >= data.length) {
+                throw new IOException("Truncated LZ77 token");
+            }
+            int b = data[position++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ((long) position << 32) | (value & 0xFFFFFFFFL);
+            }
+        }
+        throw new IOException("Malformed LZ77 token");
     }
 
     private static void writeShort(ByteArrayOutputStream stream, int value) {
@@ -100,59 +273,114 @@ public class LZ77 {
         return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
     }
 
-    private static Match findLongestMatch(byte[] data, int currentPosition, int dataLength) {
-        int maxMatchDistance = Math.min(currentPosition, WINDOW_SIZE);
-        int matchPosition = 0;
-        int maxMatchLength = 0;
-
-        // Don't try to match more bytes than we have
-        int maxBytesToMatch = Math.min(MAX_MATCH_LENGTH, dataLength - currentPosition);
+    // Hash-chain match finder. head[] holds the most recent position for each
+    // 3-byte hash and prev[] links every position in the window to the previous
+    // one with the same hash, so a search only visits plausible candidates
+    // instead of every byte of the window.
+    private static class MatchFinder {
+
+        private final ByteBuffer data;
+        private final int dataLength;
+        private final int windowSize;
+        private final int windowMask;
+        private final int maxMatchLength;
+        private final int maxChainLength;
+        private final boolean allowOverlap;
+        private final int[] head = new int[HASH_SIZE];
+        private final int[] prev;
+
+        int matchOffset;
+
+        MatchFinder(ByteBuffer data, int windowSize, int maxMatchLength, int maxChainLength, boolean allowOverlap) {
+            this.data = data;
+            this.dataLength = data.limit();
+            this.windowSize = windowSize;
+            this.windowMask = windowSize - 1; // Window size must be a power of two
+            this.maxMatchLength = maxMatchLength;
+            this.maxChainLength = Math.max(1, maxChainLength);
+            this.allowOverlap = allowOverlap;
+            this.prev = new int[windowSize];
+            Arrays.fill(head, -1);
+        }
 
-        if (maxBytesToMatch < MIN_MATCH_LENGTH) {
-            // Not enough bytes left to make a worthwhile match
-            return new Match(0, 0);
+        private int hash(int position) {
+            int key = ((data.get(position) & 0xFF) << 16)
+                    | ((data.get(position + 1) & 0xFF) << 8)
+                    | (data.get(position + 2) & 0xFF);
+            return (key * 0x9E3779B1) >>> (32 - HASH_BITS);
         }
 
-        // Search backward through the window
-        for (int i = currentPosition - 1; i >= currentPosition - maxMatchDistance; i--) {
-            // Quick check if first byte matches
-            if (data[i] != data[currentPosition]) {
-                continue;
+        void insert(int position) {
+            if (position + MIN_MATCH_LENGTH > dataLength) {
+                return; // Too close to the end to start a match
             }
+            int h = hash(position);
+            prev[position & windowMask] = head[h];
+            head[h] = position;
+        }
 
-            // Count matching bytes
-            int matchLength = 1;
-            while (matchLength < maxBytesToMatch
-                    && data[i + matchLength] == data[currentPosition + matchLength]) {
-                matchLength++;
+        void insertRange(int from, int to) {
+            for (int i = from; i < to; i++) {
+                insert(i);
             }
+        }
 
-            if (matchLength > maxMatchLength) {
-                maxMatchLength = matchLength;
-                matchPosition = i;
-
-                // If we found a match of maximum length, we can stop early
-                if (maxMatchLength == maxBytesToMatch) {
-                    break;
+        // Counts equal bytes at the two positions, up to limit. Compares eight bytes at a
+        // time; the buffer is big-endian, so the first differing byte is the highest one.
+        private int matchLength(int candidate, int current, int limit) {
+            int length = 0;
+            while (length + 8 <= limit) {
+                long difference = data.getLong(candidate + length) ^ data.getLong(current + length);
+                if (difference != 0) {
+                    return length + (Long.numberOfLeadingZeros(difference) >>> 3);
                 }
+                length += 8;
+            }
+            while (length < limit && data.get(candidate + length) == data.get(current + length)) {
+                length++;
             }
+            return length;
         }
 
-        if (maxMatchLength >= MIN_MATCH_LENGTH) {
-            return new Match(currentPosition - matchPosition, maxMatchLength);
-        }
+        // Returns the length of the longest match for the given position (0 if none)
+        // and leaves its distance in matchOffset.
+        int findLongestMatch(int currentPosition) {
+            // Don't try to match more bytes than we have
+            int maxBytesToMatch = Math.min(maxMatchLength, dataLength - currentPosition);
 
-        return new Match(0, 0);
-    }
+            if (maxBytesToMatch < MIN_MATCH_LENGTH) {
+                // Not enough bytes left to make a worthwhile match
+                return 0;
+            }
+
+            int lowestPosition = currentPosition - windowSize;
+            int candidate = head[hash(currentPosition)];
+            int chainLeft = maxChainLength;
+            int bestLength = 0;
+
+            while (candidate >= 0 && candidate >= lowestPosition && chainLeft-- > 0) {
+                // Older readers of the original token format cannot replay a match that overlaps its own output
+                int candidateLimit = allowOverlap ? maxBytesToMatch : Math.min(maxBytesToMatch, currentPosition - candidate);
 
-    private static class Match {
+                // Quick check on the byte that would extend the current best match
+                if (candidateLimit > bestLength
+                        && data.get(candidate + bestLength) == data.get(currentPosition + bestLength)) {
+                    int matchLength = matchLength(candidate, currentPosition, candidateLimit);
 
-        final int offset;
-        final int length;
+                    if (matchLength > bestLength) {
+                        bestLength = matchLength;
+                        matchOffset = currentPosition - candidate;
+
+                        // If we found a match of maximum length, we can stop early
+                        if (bestLength == maxBytesToMatch) {
+                            break;
+                        }
+                    }
+                }
+                candidate = prev[candidate & windowMask];
+            }
 
-        Match(int offset, int length) {
-            this.offset = offset;
-            this.length = length;
+            return bestLength >= MIN_MATCH_LENGTH ? bestLength : 0;
         }
     }
 }
@@ -0,0 +1,93 @@
+package bytecypher;
+
+import java.io.ByteArrayOutputStream;
+
+// Measures LZ77.compress throughput against the original brute-force window scan.
+// Usage: java bytecypher.LZ77Benchmark [sizeInMB]
+public class LZ77Benchmark {
+
+    private static final int WINDOW_SIZE = 4096;
+    private static final int MIN_MATCH_LENGTH = 3;
+    private static final int MAX_MATCH_LENGTH = 258;
+
+    public static void main(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int size = sizeMb * 1024 * 1024;
+
+        String[] names = {"text", "binary", "random"};
+        byte[][] corpora = {BenchmarkCorpus.text(size), BenchmarkCorpus.binary(size), BenchmarkCorpus.random(size)};
+
+        System.out.printf("%-8s %-16s %10s %10s%n", "corpus", "finder", "MB/s", "ratio");
+        for (int c = 0; c < corpora.length; c++) {
+            byte[] data = corpora[c];
+            run(names[c], "brute-force", data, () -> bruteForceCompress(data));
+            for (int chain : new int[]{16, 64, 256}) {
+                run(names[c], "hash-chain/" + chain, data, () -> LZ77.compress(data, chain));
+            }
+        }
+    }
+
+    private interface Codec {
+
+        byte[] compress();
+    }
+
+    private static void run(String corpus, String finder, byte[] data, Codec codec) {
+        for (int i = 0; i < 3; i++) {
+            codec.compress(); // Warm-up
+        }
+        long start = System.nanoTime();
+        byte[] compressed = codec.compress();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %-16s %10.2f %9.1f%%%n", corpus, finder,
+                data.length / (1024.0 * 1024.0) / seconds, compressed.length * 100.0 / data.length);
+    }
+
+    // The original LZ77.compress, which compared against every byte of the window.
+    private static byte[] bruteForceCompress(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < data.length) {
+            int maxMatchDistance = Math.min(position, WINDOW_SIZE);
+            int maxBytesToMatch = Math.min(MAX_MATCH_LENGTH, data.length - position);
+            int bestOffset = 0;
+            int bestLength = 0;
+
+            if (maxBytesToMatch >= MIN_MATCH_LENGTH) {
+                for (int i = position - 1; i >= position - maxMatchDistance; i--) {
+                    if (data[i] != data[position]) {
+                        continue;
+                    }
+                    int matchLength = 1;
+                    while (matchLength < maxBytesToMatch && data[i + matchLength] == data[position + matchLength]) {
+                        matchLength++;
+                    }
+                    if (matchLength > bestLength) {
+                        bestLength = matchLength;
+                        bestOffset = position - i;
+                        if (bestLength == maxBytesToMatch) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (bestLength >= MIN_MATCH_LENGTH) {
+                writeToken(out, bestOffset, bestLength);
+                position += bestLength;
+                out.write(position < data.length ? data[position++] : 0);
+            } else {
+                writeToken(out, 0, 1);
+                out.write(data[position++]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeToken(ByteArrayOutputStream out, int offset, int length) {
+        out.write(offset >> 8);
+        out.write(offset);
+        out.write(length >> 8);
+        out.write(length);
+    }
+}
@@ -10,9 +10,15 @@ public class Main {
             ArrayList<String> functions = new ArrayList<>();
             functions.add(" Shrink a File");
             functions.add(" Shrink a Folder");
+            functions.add(" Update a Folder Archive");
             functions.add(" Expand a File/Folder");
+            functions.add(" Extract One File");
             functions.add(" Secure Encryption");
             functions.add(" Secure Decryption");
+            functions.add(" Shrink & Encrypt");
+            functions.add(" Decrypt & Expand");
+            functions.add(" Batch Encryption");
+            functions.add(" Folder Encryption");
             functions.add(" Integrity Guard");
             functions.add(" About ByteCypher");
             functions.add(" Exit ByteCypher");
@@ -53,26 +59,50 @@ public class Main {
                         pause(5);
                     }
                     case 3 -> {
-                        bytecypher.Decompressor.decompress();
+                        bytecypher.Compressor.compressIncremental();
                         pause(5);
                     }
                     case 4 -> {
-                        bytecypher.Encryption.encrypt();
+                        bytecypher.Decompressor.decompress();
                         pause(5);
                     }
                     case 5 -> {
-                        bytecypher.Encryption.decrypt();
+                        bytecypher.Decompressor.extractSingle();
                         pause(5);
                     }
                     case 6 -> {
-                        bytecypher.FileIntegrity.integrity();
+                        bytecypher.Encryption.encrypt();
                         pause(5);
                     }
                     case 7 -> {
+                        bytecypher.Encryption.decrypt();
+                        pause(5);
+                    }
+                    case 8 -> {
+                        bytecypher.Compressor.compressEncrypted();
+                        pause(5);
+                    }
+                    case 9 -> {
+                        bytecypher.Decompressor.decompressEncrypted();
+                        pause(5);
+                    }
+                    case 10 -> {
+                        bytecypher.Encryption.batch();
+                        pause(5);
+                    }
+                    case 11 -> {
+                        bytecypher.Encryption.folder();
+                        pause(5);
+                    }
+                    case 12 -> {
+                        bytecypher.FileIntegrity.integrity();
+                        pause(5);
+                    }
+                    case 13 -> {
                         showAbout();
                         pause(8);
                     }
-                    case 8 -> {
+                    case 14 -> {
                         System.out.println("\n\033[31mExiting ByteCypher... Thank you for using our tool!\033[0m");
                         return;
                     }
@@ -0,0 +1,57 @@
+package bytecypher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads a file through memory-mapped windows instead of copying it to the heap.
+// A single mapping is limited to 2 GB, so larger files are mapped one window at a
+// time; chunks handed out are read-only views into the current window and stay
+// valid after the next window is mapped.
+public class MappedInput implements AutoCloseable {
+
+    private static final long MAX_WINDOW_SIZE = 1L << 30; // 1 GB
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public MappedInput(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Returns the next chunk of up to length bytes, or null at the end of the file.
+    // A chunk never spans two windows, so only the last one may be shorter.
+    public ByteBuffer next(int length) throws IOException {
+        if (position >= size) {
+            return null;
+        }
+
+        int chunkLength = (int) Math.min(length, size - position);
+        if (window == null || position + chunkLength > windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                    Math.min(Math.max(MAX_WINDOW_SIZE, chunkLength), size - windowStart));
+        }
+
+        ByteBuffer chunk = window.slice((int) (position - windowStart), chunkLength).asReadOnlyBuffer();
+        position += chunkLength;
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null; // Unmapped once no chunk refers to it any more
+        channel.close();
+    }
+}
@@ -0,0 +1,317 @@
+package bytecypher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Checksum made of SHA-256 hashes of fixed-size chunks, combined into a Merkle root.
+// Chunks are hashed in parallel, so a single large file is no longer limited to the
+// speed of one SHA-256 stream. Keeping the chunk hashes in the .checksum file lets
+// verification name the byte ranges that changed, and lets a re-check hash only
+// those ranges instead of the whole file.
+//
+// Leaves are SHA-256(0x00 | chunk) and inner nodes SHA-256(0x01 | left | right), so a
+// chunk can never pass for a node; an odd node at the end of a level moves up as is.
+// An empty file has a single empty chunk.
+public class MerkleChecksum {
+
+    static final String LABEL = "Merkle-SHA-256";
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_CHUNKS = 65536; // Chunk size doubles beyond this to keep .checksum files small
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final HexFormat HEX = HexFormat.of();
+
+    // A file's size, chunk size, chunk hashes and the root they combine into
+    static class Tree {
+
+        final long size;
+        final int chunkSize;
+        final byte[][] chunks;
+        final byte[] root;
+
+        Tree(long size, int chunkSize, byte[][] chunks) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+            this.root = root(chunks);
+        }
+
+        String rootHex() {
+            return HEX.formatHex(root);
+        }
+
+        // Writes the tree as checksum file lines
+        void write(PrintWriter writer) {
+            writer.println(LABEL + ": " + rootHex());
+            writer.println(LABEL + "-Size: " + size);
+            writer.println(LABEL + "-Chunk-Size: " + chunkSize);
+            for (int i = 0; i < chunks.length; i++) {
+                writer.println("Chunk " + i + ": " + HEX.formatHex(chunks[i]));
+            }
+        }
+    }
+
+    // Chunks a file of the given size is split into
+    static int chunkCount(long size, int chunkSize) {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    static int chunkSizeFor(long size) {
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        while ((size + chunkSize - 1) / chunkSize > MAX_CHUNKS && chunkSize < (1 << 30)) {
+            chunkSize *= 2;
+        }
+        return chunkSize;
+    }
+
+    // Hashes every chunk of the file
+    static Tree build(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunkSize = chunkSizeFor(size);
+            int count = chunkCount(size, chunkSize);
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return new Tree(size, chunkSize, hashChunks(channel, size, chunkSize, all));
+        }
+    }
+
+    // Checks the file against expected and returns the damaged byte ranges as
+    // {start, end} pairs (end exclusive), merged where they touch; empty if the file
+    // is intact. With ranges given, only chunks overlapping them are hashed, so a
+    // re-check after a repair touches just the regions that were damaged.
+    static List<long[]> verify(Path file, Tree expected, List<long[]> ranges) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long end = Math.max(size, expected.size);
+            int count = Math.max(expected.chunks.length, chunkCount(size, expected.chunkSize));
+
+            List<Integer> selected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (ranges == null || overlaps(ranges, (long) i * expected.chunkSize,
+                        Math.min((long) (i + 1) * expected.chunkSize, end))) {
+                    selected.add(i);
+                }
+            }
+
+            // Chunks missing on either side are damaged without hashing anything
+            int currentCount = chunkCount(size, expected.chunkSize);
+            int[] toHash = selected.stream()
+                    .filter(i -> i < currentCount && i < expected.chunks.length)
+                    .mapToInt(Integer::intValue).toArray();
+            byte[][] hashes = hashChunks(channel, size, expected.chunkSize, toHash);
+
+            boolean[] damaged = new boolean[count];
+            for (int i : selected) {
+                damaged[i] = true;
+            }
+            for (int i = 0; i < toHash.length; i++) {
+                damaged[toHash[i]] = !MessageDigest.isEqual(hashes[i], expected.chunks[toHash[i]]);
+            }
+
+            List<long[]> result = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (!damaged[i]) {
+                    continue;
+                }
+                long start = (long) i * expected.chunkSize;
+                long stop = Math.min(start + expected.chunkSize, end);
+                long[] last = result.isEmpty() ? null : result.get(result.size() - 1);
+                if (last != null && last[1] == start) {
+                    last[1] = stop;
+                } else {
+                    result.add(new long[]{start, stop});
+                }
+            }
+            return result;
+        }
+    }
+
+    // Reads a tree back from checksum file lines, or returns null if there is none.
+    // Throws if the chunk hashes do not add up to the recorded root, which means the
+    // checksum file itself was changed.
+    static Tree parse(List<String> lines) throws IOException {
+        String root = null;
+        long size = -1;
+        int chunkSize = -1;
+        List<byte[]> chunks = new ArrayList<>();
+        try {
+            for (String line : lines) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String key = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (key.equals(LABEL)) {
+                    root = value;
+                } else if (key.equals(LABEL + "-Size")) {
+                    size = Long.parseLong(value);
+                } else if (key.equals(LABEL + "-Chunk-Size")) {
+                    chunkSize = Integer.parseInt(value);
+                } else if (key.startsWith("Chunk ")) {
+                    if (Integer.parseInt(key.substring(6).trim()) != chunks.size()) {
+                        throw new IOException("Chunk hashes are out of order");
+                    }
+                    chunks.add(HEX.parseHex(value));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed Merkle checksum: " + e.getMessage(), e);
+        }
+
+        if (root == null) {
+            return null;
+        }
+        if (size < 0 || chunkSize <= 0 || chunks.size() != chunkCount(size, chunkSize)) {
+            throw new IOException("Merkle checksum is incomplete");
+        }
+        Tree tree = new Tree(size, chunkSize, chunks.toArray(new byte[0][]));
+        if (!tree.rootHex().equalsIgnoreCase(root)) {
+            throw new IOException("Merkle checksum does not match its chunk hashes");
+        }
+        return tree;
+    }
+
+    // Combines chunk hashes level by level into the root
+    static byte[] root(byte[][] chunks) {
+        MessageDigest digest = newDigest();
+        byte[][] level = chunks;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length / 2; i++) {
+                digest.update(NODE);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                next[i] = digest.digest();
+            }
+            if (level.length % 2 == 1) {
+                next[next.length - 1] = level[level.length - 1];
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    // Hashes the chunks at the given indices on the shared block pool, keeping at most
+    // two chunks per worker in flight. Returns the hashes in the same order.
+    private static byte[][] hashChunks(FileChannel channel, long size, int chunkSize, int[] indices)
+            throws IOException {
+        byte[][] hashes = new byte[indices.length][];
+        ForkJoinPool pool = CompressionSettings.getBlockPool();
+        if (pool == null || indices.length == 1) {
+            for (int i = 0; i < indices.length; i++) {
+                hashes[i] = hashChunk(channel, size, chunkSize, indices[i]);
+            }
+            return hashes;
+        }
+
+        Deque<Future<Void>> pending = new ArrayDeque<>();
+        int maxPending = pool.getParallelism() * 2;
+        try {
+            for (int i = 0; i < indices.length; i++) {
+                int slot = i;
+                pending.addLast(pool.submit(() -> {
+                    hashes[slot] = hashChunk(channel, size, chunkSize, indices[slot]);
+                    return null;
+                }));
+                if (pending.size() > maxPending) {
+                    await(pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                await(pending.removeFirst());
+            }
+        } finally {
+            for (Future<Void> chunk : pending) {
+                chunk.cancel(true);
+            }
+        }
+        return hashes;
+    }
+
+    // Per-thread digest and direct read buffer, grown to the largest chunk seen
+    private static class Worker {
+
+        final MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+    }
+
+    private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial(Worker::new);
+
+    private static byte[] hashChunk(FileChannel channel, long size, int chunkSize, int index) throws IOException {
+        Worker worker = WORKERS.get();
+        if (worker.buffer.capacity() < chunkSize) {
+            worker.buffer = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        long position = (long) index * chunkSize;
+        ByteBuffer buffer = worker.buffer;
+        buffer.clear().limit((int) Math.min(chunkSize, size - position));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("File changed while it was being checked");
+            }
+        }
+        buffer.flip();
+
+        worker.digest.update(LEAF);
+        worker.digest.update(buffer);
+        return worker.digest.digest();
+    }
+
+    private static boolean overlaps(List<long[]> ranges, long start, long end) {
+        for (long[] range : ranges) {
+            if (range[0] < end && start < range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void await(Future<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Checksum calculation interrupted");
+        } catch (ExecutionException e) {
+            // ForkJoinPool wraps checked exceptions thrown by a task in RuntimeExceptions
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
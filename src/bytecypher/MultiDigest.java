@@ -0,0 +1,123 @@
+package bytecypher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Computes several message digests of a file in one read. The file is read through
+// memory-mapped windows and every chunk is fed to each digest while it is still in
+// memory, so a file of any size is read once and never copied to the heap.
+//
+// When pipelined, each digest runs on a thread of its own and the reader hands the
+// same chunks to all of them through short queues; the slowest digest then sets the
+// time instead of the sum of them all. The queues bound how far the fastest digest
+// can run ahead, so memory stays constant.
+public class MultiDigest {
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024; // Hashed per digest while still in cache
+    private static final int QUEUE_DEPTH = 4;               // Chunks a digest may lag behind the reader
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    // Digests the file with every algorithm, pipelined when there are several of them
+    // and more than one worker thread is configured.
+    public static byte[][] digest(Path file, String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        boolean pipelined = algorithms.length > 1 && CompressionSettings.getWorkerThreads() > 1;
+        return digest(file, pipelined, algorithms);
+    }
+
+    // Same as above, but lets callers that already hash many files in parallel (folder
+    // manifests, duplicate detection) keep each file on a single thread.
+    public static byte[][] digest(Path file, boolean pipelined, String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[i] = MessageDigest.getInstance(algorithms[i]);
+        }
+
+        try (MappedInput input = new MappedInput(file)) {
+            if (pipelined && digests.length > 1) {
+                pipeline(input, digests);
+            } else {
+                ByteBuffer chunk;
+                while ((chunk = input.next(CHUNK_SIZE)) != null) {
+                    for (MessageDigest digest : digests) {
+                        digest.update(chunk.duplicate());
+                    }
+                }
+            }
+        }
+
+        byte[][] hashes = new byte[digests.length][];
+        for (int i = 0; i < digests.length; i++) {
+            hashes[i] = digests[i].digest();
+        }
+        return hashes;
+    }
+
+    private static void pipeline(MappedInput input, MessageDigest[] digests) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(digests.length);
+        List<BlockingQueue<ByteBuffer>> queues = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (MessageDigest digest : digests) {
+                BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+                queues.add(queue);
+                futures.add(executor.submit(() -> {
+                    ByteBuffer chunk;
+                    while ((chunk = queue.take()) != END) {
+                        digest.update(chunk);
+                    }
+                    return null;
+                }));
+            }
+
+            ByteBuffer chunk;
+            while ((chunk = input.next(CHUNK_SIZE)) != null) {
+                for (int i = 0; i < digests.length; i++) {
+                    hand(queues.get(i), futures.get(i), chunk.duplicate());
+                }
+            }
+            for (int i = 0; i < digests.length; i++) {
+                hand(queues.get(i), futures.get(i), END);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Checksum calculation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Checksum calculation failed: " + cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Queues a chunk for one digest, giving up if that digest has already failed so
+    // the reader never waits on a queue nobody is draining.
+    private static void hand(BlockingQueue<ByteBuffer> queue, Future<?> future, ByteBuffer chunk)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (future.isDone()) {
+                future.get();
+                throw new ExecutionException(new IOException("Digest stopped early"));
+            }
+        }
+    }
+}
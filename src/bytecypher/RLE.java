@@ -2,27 +2,60 @@
 package bytecypher;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class RLE {
 
     public static byte[] compress(byte[] data) {
-        ByteArrayOutputStream compressedData = new ByteArrayOutputStream();
+        return compress(ByteBuffer.wrap(data), null);
+    }
+
+    // Compresses the bytes between the buffer's position and limit in place, so a
+    // memory-mapped file is never copied to the heap.
+    public static byte[] compress(ByteBuffer data) {
+        return compress(data, null);
+    }
+
+    // Trial compression: returns null as soon as the output is over the budget.
+    static byte[] compress(ByteBuffer buffer, TrialBudget budget) {
+        ByteBuffer data = buffer.slice();
+        int length = data.limit();
+        if (length == 0) {
+            return new byte[0];
+        }
+
+        // Two bytes per run, and there are at most as many runs as input bytes
+        byte[] output = new byte[(int) Math.min(2L * length, Integer.MAX_VALUE - 8)];
+        int outPos = 0;
         int count = 1;
+        byte previous = data.get(0);
 
-        for (int i = 1; i < data.length; i++) {
-            if (data[i] == data[i - 1] && count < 255) {
+        for (int i = 1; i < length; i++) {
+            byte current = data.get(i);
+            if (current == previous && count < 255) {
                 count++;
             } else {
-                compressedData.write((byte) count);
-                compressedData.write(data[i - 1]);
+                output[outPos++] = (byte) count;
+                output[outPos++] = previous;
                 count = 1;
+                previous = current;
+
+                if (budget != null && budget.exceeded(i, outPos)) {
+                    CompressionStats.recordAbort(BlockCompression.METHOD_RLE, i);
+                    return null;
+                }
             }
         }
 
-        compressedData.write((byte) count);
-        compressedData.write(data[data.length - 1]);
+        output[outPos++] = (byte) count;
+        output[outPos++] = previous;
+        if (budget != null && budget.exceeded(length, outPos)) {
+            CompressionStats.recordAbort(BlockCompression.METHOD_RLE, length);
+            return null;
+        }
 
-        return compressedData.toByteArray();
+        return Arrays.copyOf(output, outPos);
     }
 
     public static byte[] decompress(byte[] data) {
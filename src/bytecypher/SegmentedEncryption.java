@@ -0,0 +1,512 @@
+package bytecypher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// The segmented .secfile format. The plaintext is cut into segments that are each
+// encrypted and authenticated with AES-GCM on their own:
+//
+//   ["BCSF"][version: 1 byte][kdf: 1 byte][salt: 16 bytes][file salt: 16 bytes]
+//   [base nonce: 12 bytes][segment size: int][name length: unsigned short]
+//   [original file name][segment 0][segment 1]...
+//
+// kdf names how the key is derived from the password and salts (see KeySession).
+// Version 2 files, written before batch support, have neither kdf nor file salt and
+// always use PBKDF2 over the salt.
+//
+// Every segment is segmentSize bytes of plaintext followed by a 16-byte tag, except
+// the final one, which is always shorter and may be empty. A segment's nonce is the
+// base nonce with its index XORed into the last 8 bytes. Its associated data is the
+// header, the index and a final flag, so segments cannot be reordered, dropped, cut
+// off or moved to another file without failing authentication.
+//
+// Segments sit at fixed offsets, so they are encrypted and decrypted in parallel with
+// positional reads and writes.
+public class SegmentedEncryption {
+
+    private static final byte[] MAGIC = {'B', 'C', 'S', 'F'};
+    private static final int VERSION = 3;
+    private static final int VERSION_PBKDF2_ONLY = 2;
+    private static final String CIPHER_INSTANCE = "AES/GCM/NoPadding";
+
+    static final int SALT_LENGTH = KeySession.SALT_LENGTH;
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20; // 1 MB
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int PREFIX_LENGTH = MAGIC.length + 1;
+    private static final int FIXED_HEADER_LENGTH = PREFIX_LENGTH + 1 + 2 * SALT_LENGTH + NONCE_LENGTH + 4 + 2;
+    private static final int FIXED_HEADER_LENGTH_V2 = PREFIX_LENGTH + SALT_LENGTH + NONCE_LENGTH + 4 + 2;
+
+    // The parsed header of a segmented file. The encoded bytes are kept because they
+    // are part of every segment's associated data.
+    static class Header {
+
+        final int kdf;
+        final byte[] salt;
+        final byte[] fileSalt; // null for KDF_PBKDF2
+        final byte[] baseNonce;
+        final int segmentSize;
+        final String fileName;
+        final byte[] encoded;
+
+        private Header(int kdf, byte[] salt, byte[] fileSalt, byte[] baseNonce, int segmentSize, String fileName,
+                byte[] encoded) {
+            this.kdf = kdf;
+            this.salt = salt;
+            this.fileSalt = fileSalt;
+            this.baseNonce = baseNonce;
+            this.segmentSize = segmentSize;
+            this.fileName = fileName;
+            this.encoded = encoded;
+        }
+
+        // Key for this file from the session's password
+        SecretKey key(KeySession keys) throws GeneralSecurityException {
+            return keys.fileKey(kdf, salt, fileSalt);
+        }
+
+        // Number of segments for a plaintext of the given size, counting the final one
+        long segmentCount(long plaintextSize) {
+            return plaintextSize / segmentSize + 1;
+        }
+
+        long segmentOffset(long index) {
+            return encoded.length + index * (segmentSize + (long) TAG_LENGTH);
+        }
+    }
+
+    // Creates the header for a new file written in the given session, with a fresh
+    // file salt and base nonce.
+    static Header newHeader(String fileName, int segmentSize, KeySession keys) {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between " + MIN_SEGMENT_SIZE
+                    + " and " + MAX_SEGMENT_SIZE + " bytes");
+        }
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xffff) {
+            throw new IllegalArgumentException("File name is too long to store (max 65535 bytes)");
+        }
+
+        byte[] salt = keys.masterSalt();
+        byte[] fileSalt = keys.newFileSalt();
+        byte[] baseNonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(baseNonce);
+
+        ByteBuffer encoded = ByteBuffer.allocate(FIXED_HEADER_LENGTH + name.length);
+        encoded.put(MAGIC).put((byte) VERSION).put((byte) KeySession.KDF_PBKDF2_HKDF).put(salt).put(fileSalt)
+                .put(baseNonce).putInt(segmentSize).putShort((short) name.length).put(name);
+        return new Header(KeySession.KDF_PBKDF2_HKDF, salt, fileSalt, baseNonce, segmentSize, fileName,
+                encoded.array());
+    }
+
+    // Reads the header at the start of the file, or returns null if the file is not in
+    // this format (files written before it start straight with the CBC salt). The
+    // channel's position is not changed.
+    static Header readHeader(FileChannel in) throws IOException {
+        if (in.size() < PREFIX_LENGTH) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_LENGTH);
+        readFully(in, prefix, 0);
+        byte[] magic = Arrays.copyOf(prefix.array(), MAGIC.length);
+        int version = prefix.get(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC) || (version != VERSION && version != VERSION_PBKDF2_ONLY)) {
+            return null;
+        }
+
+        int fixedLength = version == VERSION ? FIXED_HEADER_LENGTH : FIXED_HEADER_LENGTH_V2;
+        if (in.size() < fixedLength) {
+            throw new EOFException("Encrypted file is truncated");
+        }
+        ByteBuffer fixed = ByteBuffer.allocate(fixedLength);
+        readFully(in, fixed, 0);
+        fixed.position(PREFIX_LENGTH);
+
+        int kdf = KeySession.KDF_PBKDF2;
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] fileSalt = null;
+        if (version == VERSION) {
+            kdf = fixed.get() & 0xff;
+            fileSalt = new byte[SALT_LENGTH];
+            fixed.get(salt).get(fileSalt);
+        } else {
+            fixed.get(salt);
+        }
+        byte[] baseNonce = new byte[NONCE_LENGTH];
+        fixed.get(baseNonce);
+        int segmentSize = fixed.getInt();
+        int nameLength = fixed.getShort() & 0xffff;
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Invalid segment size " + segmentSize);
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(fixedLength + nameLength);
+        readFully(in, encoded, 0);
+        String fileName = new String(encoded.array(), fixedLength, nameLength, StandardCharsets.UTF_8);
+        return new Header(kdf, salt, fileSalt, baseNonce, segmentSize, fileName, encoded.array());
+    }
+
+    // Writes the header and every segment of the input to out, running segments on the
+    // pool (or inline when pool is null).
+    static void encrypt(FileChannel in, FileChannel out, Header header, SecretKey key, ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        writeFully(out, ByteBuffer.wrap(header.encoded), 0);
+
+        long size = in.size();
+        long count = header.segmentCount(size);
+        runSegments(count, pool, index -> {
+            long start = index * header.segmentSize;
+            int length = (int) Math.min(header.segmentSize, size - start);
+            processSegment(Cipher.ENCRYPT_MODE, in, start, length, out, header.segmentOffset(index),
+                    header, key, index, index == count - 1);
+        });
+        out.truncate(header.segmentOffset(count - 1) + (size - (count - 1) * header.segmentSize) + TAG_LENGTH);
+    }
+
+    // Decrypts every segment of in into out. Throws AEADBadTagException if any segment
+    // fails authentication, which is also what a wrong password looks like.
+    static void decrypt(FileChannel in, FileChannel out, Header header, SecretKey key, ForkJoinPool pool)
+            throws IOException, GeneralSecurityException {
+        long count = segmentCount(in, header);
+        long finalLength = in.size() - header.segmentOffset(count - 1) - TAG_LENGTH;
+        runSegments(count, pool, index -> {
+            int length = index == count - 1 ? (int) finalLength : header.segmentSize;
+            processSegment(Cipher.DECRYPT_MODE, in, header.segmentOffset(index), length + TAG_LENGTH,
+                    out, index * header.segmentSize, header, key, index, index == count - 1);
+        });
+        out.truncate((count - 1) * header.segmentSize + finalLength);
+    }
+
+    // Reads segment index of count into sealed, decrypts it into plain and returns the
+    // plaintext length.
+    private static int openSegment(FileChannel in, Header header, SecretKey key, Cipher cipher, long index,
+            long count, byte[] sealed, byte[] plain) throws IOException, GeneralSecurityException {
+        long offset = header.segmentOffset(index);
+        int length = (int) (index == count - 1 ? in.size() - offset : header.segmentSize + TAG_LENGTH);
+        readFully(in, ByteBuffer.wrap(sealed, 0, length), offset);
+        return initCipher(cipher, Cipher.DECRYPT_MODE, header, key, index, index == count - 1)
+                .doFinal(sealed, 0, length, plain, 0);
+    }
+
+    // Number of segments in an encrypted file, checked against the file size. A file
+    // cut off anywhere leaves a final segment shorter than its tag or one that fails
+    // authentication, because the segment before the cut was not written as final.
+    static long segmentCount(FileChannel in, Header header) throws IOException {
+        long body = in.size() - header.encoded.length;
+        long stride = header.segmentSize + (long) TAG_LENGTH;
+        if (body < TAG_LENGTH || body % stride < TAG_LENGTH) {
+            throw new EOFException("Encrypted file is truncated");
+        }
+        return body / stride + 1;
+    }
+
+    // Encrypts everything written to it into a segmented file on out, one segment at a
+    // time, so a producer such as an archive writer can stream straight into it. The
+    // final segment is written on close; until then the file is incomplete and will
+    // not decrypt.
+    static class SegmentOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Header header;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final byte[] buffer;
+        private final byte[] sealed;
+        private int count;
+        private long index;
+        private boolean closed;
+
+        SegmentOutputStream(OutputStream out, Header header, SecretKey key) throws IOException {
+            this.out = out;
+            this.header = header;
+            this.key = key;
+            this.buffer = new byte[header.segmentSize];
+            this.sealed = new byte[header.segmentSize + TAG_LENGTH];
+            try {
+                this.cipher = Cipher.getInstance(CIPHER_INSTANCE);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM is not available", e);
+            }
+            out.write(header.encoded);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // A full segment is only sealed once more data arrives, since the last
+                // segment has to be sealed as final
+                if (count == buffer.length) {
+                    seal(false);
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Only whole segments can be written, so this just flushes those already sealed
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // The final segment must be shorter than a full one, so a full buffer
+                // is followed by an empty final segment
+                if (count == buffer.length) {
+                    seal(false);
+                }
+                seal(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                int length = initCipher(cipher, Cipher.ENCRYPT_MODE, header, key, index, last)
+                        .doFinal(buffer, 0, count, sealed, 0);
+                out.write(sealed, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment encryption failed: " + e.getMessage(), e);
+            }
+            index++;
+            count = 0;
+        }
+    }
+
+    // Decrypts a segmented file front to back. Each segment is authenticated before
+    // any of its bytes are returned, so a reader never sees tampered data; a wrong
+    // password fails on the first read.
+    static class SegmentInputStream extends InputStream {
+
+        private final FileChannel in;
+        private final Header header;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final long count;
+        private final byte[] sealed;
+        private final byte[] plain;
+        private long index;
+        private int position;
+        private int limit;
+
+        SegmentInputStream(FileChannel in, Header header, SecretKey key) throws IOException {
+            this.in = in;
+            this.header = header;
+            this.key = key;
+            this.count = segmentCount(in, header);
+            this.sealed = new byte[header.segmentSize + TAG_LENGTH];
+            this.plain = new byte[header.segmentSize];
+            try {
+                this.cipher = Cipher.getInstance(CIPHER_INSTANCE);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("AES-GCM is not available", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? plain[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        // Decrypts the next segment once the current one is used up. Returns false at
+        // the end of the final segment.
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (index == count) {
+                    return false;
+                }
+                try {
+                    limit = openSegment(in, header, key, cipher, index, count, sealed, plain);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Incorrect password or corrupted file", e);
+                }
+                position = 0;
+                index++;
+            }
+            return true;
+        }
+    }
+
+    private interface SegmentTask {
+
+        void run(long index) throws IOException, GeneralSecurityException;
+    }
+
+    // Runs one task per segment, keeping at most twice the pool's parallelism in flight
+    // so a huge file does not queue millions of tasks. A single segment is run inline,
+    // as handing it to the pool would only add a wait.
+    private static void runSegments(long count, ForkJoinPool pool, SegmentTask task)
+            throws IOException, GeneralSecurityException {
+        if (pool == null || count == 1) {
+            for (long index = 0; index < count; index++) {
+                task.run(index);
+            }
+            return;
+        }
+
+        Deque<Future<Void>> pending = new ArrayDeque<>();
+        int maxPending = pool.getParallelism() * 2;
+        try {
+            for (long index = 0; index < count; index++) {
+                long segment = index;
+                pending.addLast(pool.submit(() -> {
+                    task.run(segment);
+                    return null;
+                }));
+                if (pending.size() > maxPending) {
+                    await(pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                await(pending.removeFirst());
+            }
+        } finally {
+            for (Future<Void> segment : pending) {
+                segment.cancel(true);
+            }
+        }
+    }
+
+    // Per-thread cipher and direct buffers, grown to the largest segment seen
+    private static class Worker {
+
+        Cipher cipher;
+        ByteBuffer input = ByteBuffer.allocateDirect(0);
+        ByteBuffer output = ByteBuffer.allocateDirect(0);
+    }
+
+    private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial(Worker::new);
+
+    private static void processSegment(int mode, FileChannel in, long inOffset, int inLength, FileChannel out,
+            long outOffset, Header header, SecretKey key, long index, boolean last)
+            throws IOException, GeneralSecurityException {
+        Worker worker = WORKERS.get();
+        if (worker.cipher == null) {
+            worker.cipher = Cipher.getInstance(CIPHER_INSTANCE);
+        }
+        if (worker.input.capacity() < header.segmentSize + TAG_LENGTH) {
+            worker.input = ByteBuffer.allocateDirect(header.segmentSize + TAG_LENGTH);
+            worker.output = ByteBuffer.allocateDirect(header.segmentSize + TAG_LENGTH);
+        }
+
+        ByteBuffer input = worker.input;
+        ByteBuffer output = worker.output;
+        input.clear().limit(inLength);
+        readFully(in, input, inOffset);
+        input.flip();
+        output.clear();
+        initCipher(worker.cipher, mode, header, key, index, last).doFinal(input, output);
+        output.flip();
+        writeFully(out, output, outOffset);
+    }
+
+    private static Cipher initCipher(Cipher cipher, int mode, Header header, SecretKey key, long index,
+            boolean last) throws GeneralSecurityException {
+        byte[] nonce = header.baseNonce.clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_LENGTH - 1 - i] ^= (byte) (index >>> (8 * i));
+        }
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header.encoded);
+        cipher.updateAAD(ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array());
+        return cipher;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of encrypted file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static void await(Future<Void> task) throws IOException, GeneralSecurityException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segment processing interrupted");
+        } catch (ExecutionException e) {
+            // ForkJoinPool wraps checked exceptions thrown by a task in RuntimeExceptions
+            Throwable cause = e.getCause();
+            while (cause instanceof RuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package bytecypher;
+
+// Output budget for a trial compression. A codec checks it as it goes and gives up
+// as soon as its output passes the limit, or earlier when the output so far is
+// above the limit's ratio at one of the checkpoints (1/16, 1/8, 1/4, 1/2 of the
+// input). On incompressible data the trial then costs a small part of a full pass.
+class TrialBudget {
+
+    private static final int MIN_CHECKPOINT = 4096; // Too little input before this to judge
+
+    private final int inputLength;
+    private final long limit;
+    private int nextCheckpoint;
+
+    TrialBudget(int inputLength, long limit) {
+        this.inputLength = inputLength;
+        this.limit = limit;
+        this.nextCheckpoint = Math.max(MIN_CHECKPOINT, inputLength / 16);
+    }
+
+    // Returns true once the output is over budget, or on course to be.
+    boolean exceeded(int position, int outputSize) {
+        if (outputSize > limit) {
+            return true;
+        }
+        if (position < nextCheckpoint || position >= inputLength) {
+            return false;
+        }
+        nextCheckpoint = position > inputLength / 2 ? Integer.MAX_VALUE : position * 2;
+        return outputSize > limit * position / inputLength;
+    }
+}